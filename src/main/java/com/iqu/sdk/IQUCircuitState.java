@@ -0,0 +1,81 @@
+package com.iqu.sdk;
+
+/**
+ * Possible states of the connection to the server, see
+ * {@link IQUSDK#getCircuitState()}.
+ */
+public enum IQUCircuitState {
+    /**
+     * The server is available, messages are sent as soon as possible.
+     */
+    CLOSED(0),
+
+    /**
+     * Sending failed; nothing is sent until the next attempt time has passed.
+     */
+    OPEN(1),
+
+    /**
+     * The next attempt time has passed; a single small batch of messages is
+     * sent to find out if the server is available again.
+     */
+    HALF_OPEN(2);
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Store value
+     */
+    private final int m_value;
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param aValue
+     *            integer circuit state value
+     */
+    IQUCircuitState(int aValue) {
+        this.m_value = aValue;
+    }
+
+    //
+    // PUBLIC PROPERTIES
+    //
+
+    /**
+     * Returns the circuit state as integer.
+     * 
+     * @return circuit state as integer
+     */
+    public int getValue() {
+        return this.m_value;
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    /**
+     * Find a specific circuit state for an integer value.
+     * 
+     * @param aCircuitState
+     *            integer value to find circuit state for
+     * 
+     * @return the found circuit state or null if none could be found for
+     *         aCircuitState
+     */
+    public static IQUCircuitState find(int aCircuitState) {
+        for (IQUCircuitState circuitState : IQUCircuitState.values()) {
+            if (circuitState.getValue() == aCircuitState) {
+                return circuitState;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,76 @@
+package com.iqu.sdk;
+
+/**
+ * IQUCrc32C calculates CRC-32C (Castagnoli) checksums. It is used to detect
+ * corrupt records in the message journal.
+ */
+final class IQUCrc32C {
+    //
+    // PRIVATE CONST
+    //
+
+    /**
+     * Reversed CRC-32C polynomial.
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    /**
+     * Lookup table, one entry for every byte value.
+     */
+    private static final int[] TABLE = createTable();
+
+    //
+    // PRIVATE CONSTRUCTOR
+    //
+
+    /**
+     * Class only contains static methods.
+     */
+    private IQUCrc32C() {
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Calculates the checksum for a range of bytes.
+     *
+     * @param aData
+     *            Data to calculate checksum for
+     * @param anOffset
+     *            Offset of first byte
+     * @param aLength
+     *            Number of bytes
+     *
+     * @return CRC-32C checksum
+     */
+    protected static int calculate(byte[] aData, int anOffset, int aLength) {
+        int crc = 0xFFFFFFFF;
+        for (int index = anOffset, end = anOffset + aLength; index < end; index++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ aData[index]) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Creates the lookup table.
+     *
+     * @return lookup table
+     */
+    private static int[] createTable() {
+        int[] table = new int[256];
+        for (int index = 0; index < 256; index++) {
+            int crc = index;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            table[index] = crc;
+        }
+        return table;
+    }
+}
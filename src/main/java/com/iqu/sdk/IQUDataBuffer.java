@@ -0,0 +1,369 @@
+package com.iqu.sdk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * IQUDataBuffer is a growable byte buffer used to write and read records.
+ * Strings are stored as a 32 bit length followed by the raw UTF-8 bytes, so
+ * there is no limit on the length of a string.
+ * <p>
+ * A buffer is either used for writing (see {@link #reset()}) or for reading
+ * data from an existing byte array (see {@link #wrap(byte[], int, int)}).
+ * </p>
+ */
+class IQUDataBuffer {
+    //
+    // PROTECTED CONST
+    //
+
+    /**
+     * UTF-8 character set.
+     */
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Data stored in the buffer.
+     */
+    private byte[] m_data;
+
+    /**
+     * Writing: number of bytes written; reading: end of the data.
+     */
+    private int m_size;
+
+    /**
+     * Position of the next byte to read.
+     */
+    private int m_position;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param aCapacity
+     *            Initial capacity in bytes
+     */
+    protected IQUDataBuffer(int aCapacity) {
+        this.m_data = new byte[Math.max(16, aCapacity)];
+        this.m_size = 0;
+        this.m_position = 0;
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Empties the buffer, so it can be written to.
+     */
+    protected void reset() {
+        this.m_size = 0;
+        this.m_position = 0;
+    }
+
+    /**
+     * Reads from a byte array. The array is not copied.
+     *
+     * @param aData
+     *            Data to read from
+     * @param anOffset
+     *            Offset of first byte to read
+     * @param aLength
+     *            Number of bytes that can be read
+     */
+    protected void wrap(byte[] aData, int anOffset, int aLength) {
+        this.m_data = aData;
+        this.m_position = anOffset;
+        this.m_size = anOffset + aLength;
+    }
+
+    /**
+     * Writes the contents of the buffer to a stream.
+     *
+     * @param aStream
+     *            Stream to write to
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected void writeTo(OutputStream aStream) throws IOException {
+        aStream.write(this.m_data, 0, this.m_size);
+    }
+
+    /**
+     * Writes a byte.
+     *
+     * @param aValue
+     *            Value to write
+     */
+    protected void writeByte(int aValue) {
+        this.ensureCapacity(1);
+        this.m_data[this.m_size++] = (byte) aValue;
+    }
+
+    /**
+     * Writes a 32 bit integer (big endian).
+     *
+     * @param aValue
+     *            Value to write
+     */
+    protected void writeInt(int aValue) {
+        this.ensureCapacity(4);
+        this.setInt(this.m_size, aValue);
+        this.m_size += 4;
+    }
+
+    /**
+     * Writes a 64 bit integer (big endian).
+     *
+     * @param aValue
+     *            Value to write
+     */
+    protected void writeLong(long aValue) {
+        this.writeInt((int) (aValue >>> 32));
+        this.writeInt((int) aValue);
+    }
+
+    /**
+     * Writes a range of bytes.
+     *
+     * @param aData
+     *            Data to write
+     * @param anOffset
+     *            Offset of first byte
+     * @param aLength
+     *            Number of bytes to write
+     */
+    protected void writeBytes(byte[] aData, int anOffset, int aLength) {
+        this.ensureCapacity(aLength);
+        System.arraycopy(aData, anOffset, this.m_data, this.m_size, aLength);
+        this.m_size += aLength;
+    }
+
+    /**
+     * Writes a string as length followed by the UTF-8 encoded characters.
+     * Unpaired surrogates are written as '?'.
+     *
+     * @param aValue
+     *            String to write
+     */
+    protected void writeString(String aValue) {
+        int length = aValue.length();
+        this.ensureCapacity(4 + length * 3);
+        int start = this.m_size;
+        int position = start + 4;
+        byte[] data = this.m_data;
+        for (int index = 0; index < length; index++) {
+            char c = aValue.charAt(index);
+            if (c < 0x80) {
+                data[position++] = (byte) c;
+            } else if (c < 0x800) {
+                data[position++] = (byte) (0xC0 | (c >> 6));
+                data[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+                if (Character.isHighSurrogate(c) && (index + 1 < length)
+                        && Character.isLowSurrogate(aValue.charAt(index + 1))) {
+                    int codePoint = Character.toCodePoint(c, aValue.charAt(++index));
+                    data[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    data[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    data[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    data[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    data[position++] = (byte) '?';
+                }
+            } else {
+                data[position++] = (byte) (0xE0 | (c >> 12));
+                data[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                data[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.setInt(start, position - start - 4);
+        this.m_size = position;
+    }
+
+    /**
+     * Reserves space for a 32 bit integer that is set later via
+     * {@link #setInt(int, int)}.
+     *
+     * @return position of the integer
+     */
+    protected int reserveInt() {
+        this.writeInt(0);
+        return this.m_size - 4;
+    }
+
+    /**
+     * Stores a 32 bit integer at a certain position.
+     *
+     * @param aPosition
+     *            Position to store integer at
+     * @param aValue
+     *            Value to store
+     */
+    protected void setInt(int aPosition, int aValue) {
+        putInt(this.m_data, aPosition, aValue);
+    }
+
+    /**
+     * Reads a byte.
+     *
+     * @return byte value
+     *
+     * @throws IOException
+     *             (if there is no more data)
+     */
+    protected byte readByte() throws IOException {
+        this.checkAvailable(1);
+        return this.m_data[this.m_position++];
+    }
+
+    /**
+     * Reads a 32 bit integer.
+     *
+     * @return integer value
+     *
+     * @throws IOException
+     *             (if there is not enough data)
+     */
+    protected int readInt() throws IOException {
+        this.checkAvailable(4);
+        int result = getInt(this.m_data, this.m_position);
+        this.m_position += 4;
+        return result;
+    }
+
+    /**
+     * Reads a 64 bit integer.
+     *
+     * @return long value
+     *
+     * @throws IOException
+     *             (if there is not enough data)
+     */
+    protected long readLong() throws IOException {
+        long high = this.readInt();
+        return (high << 32) | (this.readInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(String)}.
+     *
+     * @return string value
+     *
+     * @throws IOException
+     *             (if there is not enough data)
+     */
+    protected String readString() throws IOException {
+        int length = this.readInt();
+        if (length < 0) {
+            throw new IOException("invalid string length " + length);
+        }
+        this.checkAvailable(length);
+        String result = new String(this.m_data, this.m_position, length, UTF8);
+        this.m_position += length;
+        return result;
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * Returns the internal data. Only the first {@link #getSize()} bytes are
+     * valid.
+     *
+     * @return internal byte array
+     */
+    protected byte[] getData() {
+        return this.m_data;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return number of bytes
+     */
+    protected int getSize() {
+        return this.m_size;
+    }
+
+    //
+    // PROTECTED STATIC METHODS
+    //
+
+    /**
+     * Gets a 32 bit integer from an array.
+     *
+     * @param aData
+     *            Array to read from
+     * @param aPosition
+     *            Position of first byte
+     *
+     * @return integer value
+     */
+    protected static int getInt(byte[] aData, int aPosition) {
+        return ((aData[aPosition] & 0xFF) << 24) | ((aData[aPosition + 1] & 0xFF) << 16)
+                | ((aData[aPosition + 2] & 0xFF) << 8) | (aData[aPosition + 3] & 0xFF);
+    }
+
+    /**
+     * Stores a 32 bit integer in an array.
+     *
+     * @param aData
+     *            Array to store integer in
+     * @param aPosition
+     *            Position of first byte
+     * @param aValue
+     *            Value to store
+     */
+    protected static void putInt(byte[] aData, int aPosition, int aValue) {
+        aData[aPosition] = (byte) (aValue >>> 24);
+        aData[aPosition + 1] = (byte) (aValue >>> 16);
+        aData[aPosition + 2] = (byte) (aValue >>> 8);
+        aData[aPosition + 3] = (byte) aValue;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Makes sure a number of bytes can be written.
+     *
+     * @param aCount
+     *            Number of bytes
+     */
+    private void ensureCapacity(int aCount) {
+        int required = this.m_size + aCount;
+        if (required > this.m_data.length) {
+            byte[] data = new byte[Math.max(required, this.m_data.length * 2)];
+            System.arraycopy(this.m_data, 0, data, 0, this.m_size);
+            this.m_data = data;
+        }
+    }
+
+    /**
+     * Checks if a number of bytes can be read.
+     *
+     * @param aCount
+     *            Number of bytes
+     *
+     * @throws EOFException
+     *             (if not enough bytes are available)
+     */
+    private void checkAvailable(int aCount) throws EOFException {
+        if (this.m_size - this.m_position < aCount) {
+            throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.iqu.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IQUEventRing is a fixed size ring of preallocated {@link IQUEventSlot}
+ * instances. Multiple threads can claim and publish slots without locking or
+ * creating objects; a single consumer reads the published slots in sequence
+ * order and releases them for reuse.
+ * <p>
+ * Producers claim the next sequence number with a compare-and-set operation,
+ * fill the slot and publish it. The consumer waits for the slot of the next
+ * sequence number to be published, so events are consumed in the order they
+ * were claimed. {@link #poll()}, {@link #release(IQUEventSlot)} and
+ * {@link #clear()} must not be called from different threads at the same
+ * time.
+ * </p>
+ */
+class IQUEventRing {
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * The slots, the number of slots is a power of 2.
+     */
+    private final IQUEventSlot[] m_slots;
+
+    /**
+     * Used to get the slot of a sequence number.
+     */
+    private final int m_mask;
+
+    /**
+     * Next sequence number to claim.
+     */
+    private final AtomicLong m_claimSequence;
+
+    /**
+     * Next sequence number to consume; slots of lower sequence numbers can be
+     * claimed again.
+     */
+    private volatile long m_consumeSequence;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new ring and all its slots.
+     *
+     * @param aCapacity
+     *            Minimum number of slots, rounded up to a power of 2
+     */
+    protected IQUEventRing(int aCapacity) {
+        int capacity = 1;
+        while (capacity < aCapacity) {
+            capacity <<= 1;
+        }
+        this.m_slots = new IQUEventSlot[capacity];
+        for (int index = 0; index < capacity; index++) {
+            this.m_slots[index] = new IQUEventSlot();
+        }
+        this.m_mask = capacity - 1;
+        this.m_claimSequence = new AtomicLong(0);
+        this.m_consumeSequence = 0;
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Claims a slot for a new event. The caller must fill the slot and call
+     * {@link #publish(IQUEventSlot)}.
+     *
+     * @return slot or null if all slots are in use
+     */
+    protected IQUEventSlot claim() {
+        while (true) {
+            long sequence = this.m_claimSequence.get();
+            if (sequence - this.m_consumeSequence >= this.m_slots.length) {
+                return null;
+            }
+            if (this.m_claimSequence.compareAndSet(sequence, sequence + 1)) {
+                IQUEventSlot slot = this.m_slots[(int) sequence & this.m_mask];
+                slot.claimed(sequence);
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Makes a claimed slot available to the consumer.
+     *
+     * @param aSlot
+     *            Slot returned by {@link #claim()}
+     */
+    protected void publish(IQUEventSlot aSlot) {
+        aSlot.publish();
+    }
+
+    /**
+     * Returns the slot of the next event. The slot stays in use until
+     * {@link #release(IQUEventSlot)} is called.
+     *
+     * @return slot or null if the next event has not been published
+     */
+    protected IQUEventSlot poll() {
+        long sequence = this.m_consumeSequence;
+        IQUEventSlot slot = this.m_slots[(int) sequence & this.m_mask];
+        return slot.isPublished(sequence) ? slot : null;
+    }
+
+    /**
+     * Clears the slot returned by {@link #poll()} and makes it available to
+     * producers again.
+     *
+     * @param aSlot
+     *            Slot returned by {@link #poll()}
+     */
+    protected void release(IQUEventSlot aSlot) {
+        aSlot.clear();
+        this.m_consumeSequence++;
+    }
+
+    /**
+     * Removes all published events.
+     */
+    protected void clear() {
+        for (IQUEventSlot slot = this.poll(); slot != null; slot = this.poll()) {
+            this.release(slot);
+        }
+    }
+
+    /**
+     * Checks if there are events that have not been consumed.
+     *
+     * @return <code>true</code> if no event is waiting
+     */
+    protected boolean isEmpty() {
+        return this.getCount() == 0;
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * The count property contains the number of claimed slots that have not
+     * been consumed.
+     *
+     * @return number of events
+     */
+    protected int getCount() {
+        return (int) (this.m_claimSequence.get() - this.m_consumeSequence);
+    }
+}
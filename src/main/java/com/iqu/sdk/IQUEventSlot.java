@@ -0,0 +1,246 @@
+package com.iqu.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * IQUEventSlot is a preallocated entry of {@link IQUEventRing}. A slot stores
+ * the arguments of a tracking call as primitive values and references, so
+ * tracking an event does not create any objects. The event is converted to
+ * JSON once the slot is consumed.
+ * <p>
+ * Between {@link IQUEventRing#claim()} and {@link IQUEventRing#publish(IQUEventSlot)}
+ * the slot is only accessed by the thread that claimed it.
+ * </p>
+ */
+class IQUEventSlot {
+    //
+    // PROTECTED CONST
+    //
+
+    /**
+     * Maximum number of fields a slot can store.
+     */
+    protected static final int MAX_FIELDS = 5;
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Sequence number of the event stored in the slot; set when the event is
+     * published.
+     */
+    private volatile long m_published;
+
+    /**
+     * Sequence number assigned by the last claim.
+     */
+    private long m_claimed;
+
+    /**
+     * See property definition.
+     */
+    private String m_type;
+
+    /**
+     * See property definition.
+     */
+    private long m_time;
+
+    /**
+     * See property definition.
+     */
+    private IQUIds m_ids;
+
+    /**
+     * Number of fields stored.
+     */
+    private int m_fieldCount;
+
+    /**
+     * Names of the fields.
+     */
+    private final String[] m_names;
+
+    /**
+     * Text values of the fields (null for number fields).
+     */
+    private final String[] m_texts;
+
+    /**
+     * Number values of the fields (only used if the text value is null).
+     */
+    private final float[] m_numbers;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new empty slot.
+     */
+    protected IQUEventSlot() {
+        this.m_published = -1;
+        this.m_claimed = -1;
+        this.m_names = new String[MAX_FIELDS];
+        this.m_texts = new String[MAX_FIELDS];
+        this.m_numbers = new float[MAX_FIELDS];
+        this.clear();
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Starts a new event in the slot.
+     *
+     * @param aType
+     *            Event type
+     * @param aTime
+     *            Time of the event in milliseconds since 1-1-1970
+     * @param anIds
+     *            Ids snapshot at the time of the event
+     */
+    protected void begin(String aType, long aTime, IQUIds anIds) {
+        this.m_type = aType;
+        this.m_time = aTime;
+        this.m_ids = anIds;
+        this.m_fieldCount = 0;
+    }
+
+    /**
+     * Adds a text field. Nothing is added if the value is null.
+     *
+     * @param aName
+     *            Name of the field
+     * @param aValue
+     *            Value of the field or null
+     */
+    protected void addText(String aName, String aValue) {
+        if (aValue != null) {
+            this.m_names[this.m_fieldCount] = aName;
+            this.m_texts[this.m_fieldCount] = aValue;
+            this.m_fieldCount++;
+        }
+    }
+
+    /**
+     * Adds a number field.
+     *
+     * @param aName
+     *            Name of the field
+     * @param aValue
+     *            Value of the field
+     */
+    protected void addNumber(String aName, float aValue) {
+        this.m_names[this.m_fieldCount] = aName;
+        this.m_texts[this.m_fieldCount] = null;
+        this.m_numbers[this.m_fieldCount] = aValue;
+        this.m_fieldCount++;
+    }
+
+    /**
+     * Adds the fields to an event.
+     *
+     * @param anEvent
+     *            Event to add the fields to
+     *
+     * @throws JSONException
+     *             (if a value could not be added)
+     */
+    protected void putFields(JSONObject anEvent) throws JSONException {
+        for (int index = 0; index < this.m_fieldCount; index++) {
+            if (this.m_texts[index] == null) {
+                anEvent.put(this.m_names[index], this.m_numbers[index]);
+            } else {
+                anEvent.put(this.m_names[index], this.m_texts[index]);
+            }
+        }
+    }
+
+    /**
+     * Removes the references stored in the slot.
+     */
+    protected void clear() {
+        for (int index = 0; index < this.m_fieldCount; index++) {
+            this.m_names[index] = null;
+            this.m_texts[index] = null;
+        }
+        this.m_fieldCount = 0;
+        this.m_type = null;
+        this.m_time = 0;
+        this.m_ids = null;
+    }
+
+    /**
+     * Stores the sequence number assigned by a claim.
+     *
+     * @param aSequence
+     *            Claimed sequence number
+     */
+    protected void claimed(long aSequence) {
+        this.m_claimed = aSequence;
+    }
+
+    /**
+     * Checks if the slot was claimed from a ring. Slots created when all
+     * slots of the ring are in use are never claimed.
+     *
+     * @return <code>true</code> if the slot belongs to a ring
+     */
+    protected boolean isClaimed() {
+        return this.m_claimed >= 0;
+    }
+
+    /**
+     * Makes the event available to the consumer.
+     */
+    protected void publish() {
+        this.m_published = this.m_claimed;
+    }
+
+    /**
+     * Checks if the event with a certain sequence number has been published.
+     *
+     * @param aSequence
+     *            Sequence number to check
+     *
+     * @return <code>true</code> if the slot contains the event
+     */
+    protected boolean isPublished(long aSequence) {
+        return this.m_published == aSequence;
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * The type property contains the event type.
+     *
+     * @return event type
+     */
+    protected String getType() {
+        return this.m_type;
+    }
+
+    /**
+     * The time property contains the time of the event.
+     *
+     * @return time in milliseconds since 1-1-1970
+     */
+    protected long getTime() {
+        return this.m_time;
+    }
+
+    /**
+     * The ids property contains the ids snapshot at the time of the event.
+     *
+     * @return ids snapshot
+     */
+    protected IQUIds getIds() {
+        return this.m_ids;
+    }
+}
@@ -0,0 +1,234 @@
+package com.iqu.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONObject;
+
+/**
+ * IQUHttpClientTransport sends requests using java.net.http.HttpClient. The
+ * request is sent asynchronously (using HTTP/2 when the server supports it);
+ * {@link #send} waits on the returned future, {@link #sendAsync} returns it,
+ * so there is no thread per request and no polling. A timeout or
+ * cancellation ends the wait right away.
+ * <p>
+ * The class is only used when java.net.http is available (it is not part of
+ * Android), see {@link #isAvailable()}.
+ * </p>
+ */
+class IQUHttpClientTransport implements IQUTransport {
+    //
+    // PRIVATE TYPES
+    //
+
+    /**
+     * Future that converts the response to a result once it is available.
+     */
+    private class ResponseFuture implements Future<JSONObject> {
+        /**
+         * Future returned by the client.
+         */
+        private final CompletableFuture<HttpResponse<String>> m_future;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param aFuture
+         *            Future returned by the client
+         */
+        private ResponseFuture(CompletableFuture<HttpResponse<String>> aFuture) {
+            this.m_future = aFuture;
+        }
+
+        @Override
+        public boolean cancel(boolean aMayInterrupt) {
+            IQUHttpClientTransport.this.m_pending.remove(this.m_future);
+            return this.m_future.cancel(aMayInterrupt);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.m_future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.m_future.isDone();
+        }
+
+        @Override
+        public JSONObject get() throws InterruptedException, ExecutionException {
+            try {
+                return this.toResult(this.m_future.get());
+            } finally {
+                this.removeIfDone();
+            }
+        }
+
+        @Override
+        public JSONObject get(long aTimeout, TimeUnit aUnit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            try {
+                return this.toResult(this.m_future.get(aTimeout, aUnit));
+            } finally {
+                this.removeIfDone();
+            }
+        }
+
+        /**
+         * Creates the result for a response.
+         *
+         * @param aResponse
+         *            Response from the server
+         *
+         * @return result, see {@link IQUNetwork#createResult}
+         *
+         * @throws ExecutionException
+         *             (if the result could not be created)
+         */
+        private JSONObject toResult(HttpResponse<String> aResponse) throws ExecutionException {
+            try {
+                return IQUHttpClientTransport.this.m_network.createResult(aResponse.statusCode(),
+                        aResponse.body(), aResponse.headers().map());
+            } catch (Exception error) {
+                throw new ExecutionException(error);
+            }
+        }
+
+        /**
+         * Stops tracking the request once it is finished.
+         */
+        private void removeIfDone() {
+            if (this.m_future.isDone()) {
+                IQUHttpClientTransport.this.m_pending.remove(this.m_future);
+            }
+        }
+    }
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Network that creates the results.
+     */
+    private final IQUNetwork m_network;
+
+    /**
+     * Client used for all requests.
+     */
+    private final HttpClient m_client;
+
+    /**
+     * Requests currently being sent.
+     */
+    private final Set<CompletableFuture<HttpResponse<String>>> m_pending;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new instance.
+     *
+     * @param aNetwork
+     *            Network that uses the transport.
+     */
+    protected IQUHttpClientTransport(IQUNetwork aNetwork) {
+        this.m_network = aNetwork;
+        this.m_client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL).build();
+        this.m_pending = ConcurrentHashMap.newKeySet();
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Checks if java.net.http.HttpClient is available.
+     *
+     * @return <code>true</code> if the class can be used.
+     */
+    protected static boolean isAvailable() {
+        try {
+            Class.forName("java.net.http.HttpClient");
+            return true;
+        } catch (Throwable ignore) {
+            return false;
+        }
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    @Override
+    public JSONObject send(String anUrl, IQUMessageQueue aPostContent, long aTimeout)
+            throws Exception {
+        return this.m_network.await(this.sendAsync(anUrl, aPostContent, aTimeout), aTimeout);
+    }
+
+    @Override
+    public Future<JSONObject> sendAsync(String anUrl, IQUMessageQueue aPostContent,
+            long aTimeout) throws Exception {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(anUrl))
+                .timeout(Duration.ofMillis(aTimeout))
+                .header("Content-Type", "application/json")
+                .header("SdkVersion", IQUSDK.SDK_VERSION)
+                .header("SdkType", "Android");
+        if (aPostContent == null) {
+            builder.GET();
+        } else if (this.m_network.isCompressed(aPostContent)) {
+            // the compressed content is small compared to the messages, so
+            // it is published as a single array
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(
+                    (int) Math.min(aPostContent.getJSONLength() / 4, Integer.MAX_VALUE));
+            this.m_network.writeCompressed(aPostContent, stream);
+            builder.header("Content-Encoding", "gzip");
+            builder.POST(HttpRequest.BodyPublishers.ofByteArray(stream.toByteArray()));
+        } else {
+            // the fragments are published as they are, without copying them
+            builder.POST(HttpRequest.BodyPublishers.fromPublisher(
+                    HttpRequest.BodyPublishers.ofByteArrays(aPostContent.getJSONFragments()),
+                    aPostContent.getJSONLength()));
+        }
+        CompletableFuture<HttpResponse<String>> future = this.m_client.sendAsync(
+                builder.build(), HttpResponse.BodyHandlers.ofString(IQUDataBuffer.UTF8));
+        this.m_pending.add(future);
+        // cancelled before the future was stored?
+        if (this.m_network.isCancelled()) {
+            future.cancel(true);
+        }
+        return new ResponseFuture(future);
+    }
+
+    @Override
+    public void cancel() {
+        for (CompletableFuture<HttpResponse<String>> future : this.m_pending) {
+            future.cancel(true);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        this.cancel();
+    }
+
+    @Override
+    public double getConnectionReuseRate() {
+        // connections are managed by the client
+        return -1.0;
+    }
+}
@@ -1,8 +1,7 @@
 package com.iqu.sdk;
 
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.json.JSONObject;
 
@@ -10,22 +9,98 @@ import android.os.Build;
 import android.provider.Settings.Secure;
 
 /**
- * IQUIds is a collection that can store an id for every id type.
+ * IQUIds is an immutable snapshot that contains an id for every id type.
+ * <p>
+ * Changing an id creates a new snapshot with a higher version, so messages
+ * can share the snapshot that was current when they were created instead of
+ * storing a copy of the ids.
+ * </p>
+ * <p>
+ * Snapshots published by the SDK are linked to the snapshot published after
+ * them. Ids that were still empty when a message was created are resolved
+ * when the message is sent by following these links, see
+ * {@link #resolve(IQUIds)}.
+ * </p>
  */
 class IQUIds {
+    //
+    // PRIVATE CONSTS
+    //
+
+    /**
+     * Size to use for m_ids
+     */
+    private static final int COUNT = getCount();
+
+    //
+    // PROTECTED CONSTS
+    //
+
+    /**
+     * Snapshot without any ids.
+     */
+    protected static final IQUIds EMPTY = new IQUIds();
+
+    //
+    // PRIVATE TYPES
+    //
+
+    /**
+     * Result of the last call to {@link IQUIds#resolve(IQUIds)}.
+     */
+    private static class Resolution {
+        /**
+         * Snapshot that was resolved against
+         */
+        private final IQUIds m_current;
+
+        /**
+         * Resolved snapshot
+         */
+        private final IQUIds m_result;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param aCurrent
+         *            Snapshot that was resolved against
+         * @param aResult
+         *            Resolved snapshot
+         */
+        private Resolution(IQUIds aCurrent, IQUIds aResult) {
+            this.m_current = aCurrent;
+            this.m_result = aResult;
+        }
+    }
+
     //
     // PRIVATE VARS
     //
 
     /**
-     * Use array to store ids
+     * Use array to store ids, the array is never changed.
      */
-    private volatile String[] m_ids;
+    private final String[] m_ids;
 
     /**
-     * Size to use for m_ids
+     * See property definition.
      */
-    private static volatile int m_count = -1;
+    private final long m_version;
+
+    /**
+     * Cached JSON string or null if it has to be created.
+     */
+    private volatile String m_cachedJSONString;
+
+    /**
+     * Snapshot published after this snapshot or null if there is none (yet).
+     */
+    private volatile IQUIds m_next;
+
+    /**
+     * Cached result of {@link #resolve(IQUIds)} or null if there is none.
+     */
+    private volatile Resolution m_resolution;
 
     /**
      * Secure.ANDROID_ID, will be created only one time.
@@ -37,41 +112,35 @@ class IQUIds {
     //
 
     /**
-     * Creates empty ids container.
+     * Creates empty ids snapshot.
      */
     protected IQUIds() {
-        // determine size of ids array?
-        if (m_count < 0) {
-            // yes, just iterate over all items and determine maximum value
-            for (IQUIdType type : IQUIdType.values()) {
-                // use +1 since the value must be a valid index into the array
-                m_count = Math.max(m_count, type.getValue() + 1);
-            }
+        this.m_ids = new String[COUNT];
+        for (int index = 0; index < COUNT; index++) {
+            this.m_ids[index] = "";
         }
-        this.m_ids = new String[m_count];
-        this.clearIds();
+        this.m_version = 0;
+        this.m_cachedJSONString = null;
     }
 
     /**
-     * Creates ids container using another ids container as source.
+     * Creates ids snapshot using an array of ids.
      * 
-     * @param aSource
-     *            Source to make copy from.
+     * @param anIds
+     *            Ids to use (the array is not copied)
+     * @param aVersion
+     *            Version of the snapshot
      */
-    private IQUIds(IQUIds aSource) {
-        this.m_ids = aSource.m_ids.clone();
+    private IQUIds(String[] anIds, long aVersion) {
+        this.m_ids = anIds;
+        this.m_version = aVersion;
+        this.m_cachedJSONString = null;
     }
 
     //
     // PROTECTED METHODS
     //
 
-    /**
-     * Cleans up references and used resources.
-     */
-    protected void destroy() {
-    }
-
     /**
      * Returns a id value for a certain type. If the id is not known, an empty
      * string is returned.
@@ -103,80 +172,251 @@ class IQUIds {
     }
 
     /**
-     * Store a value for a certain type. Any previous value is overwritten.
+     * Returns a snapshot with a new value for a certain type. Any previous
+     * value is overwritten.
      * 
      * @param aType
      *            Type to store value for.
      * @param aValue
      *            Value to store for the type.
+     * 
+     * @return new snapshot or this instance if the value did not change
      */
-    protected void set(IQUIdType aType, String aValue) {
-        switch (aType) {
-            case ANDROID_ID:
-            case ANDROID_SERIAL:
-                // don't store ids with fixed values
-                break;
-            default:
-                this.m_ids[aType.getValue()] = aValue == null ? "" : aValue;
-                break;
+    protected IQUIds with(IQUIdType aType, String aValue) {
+        String value = aValue == null ? "" : aValue;
+        // don't store ids with fixed values
+        if (isFixedType(aType) || this.m_ids[aType.getValue()].equals(value)) {
+            return this;
         }
+        String[] ids = this.m_ids.clone();
+        ids[aType.getValue()] = value;
+        return new IQUIds(ids, this.m_version + 1);
     }
 
     /**
-     * Save the ids.
+     * Returns a snapshot with a new value for a certain type and links this
+     * snapshot to it. Only used for the snapshot the SDK publishes.
      * 
-     * @param anOutput
-     *            Output to write values to.
+     * @param aType
+     *            Type to store value for.
+     * @param aValue
+     *            Value to store for the type.
      * 
-     * @throws IOException
-     *             (if saving fails)
+     * @return new snapshot or this instance if the value did not change
+     */
+    protected IQUIds publish(IQUIdType aType, String aValue) {
+        IQUIds result = this.with(aType, aValue);
+        if (result != this) {
+            this.m_next = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the snapshot published after this one.
+     * 
+     * @return snapshot or null if none was published (yet)
+     */
+    protected IQUIds getNext() {
+        return this.m_next;
+    }
+
+    /**
+     * Returns the id type that was changed by the snapshot published after
+     * this one.
+     * 
+     * @return changed type or null if no snapshot was published (yet)
+     */
+    protected IQUIdType getPublishedType() {
+        IQUIds next = this.m_next;
+        if (next != null) {
+            for (IQUIdType type : IQUIdType.values()) {
+                int index = type.getValue();
+                if (!this.m_ids[index].equals(next.m_ids[index])) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the ids that were still empty when this snapshot was created.
+     * Every id type that only gets set if it is empty (see
+     * {@link #update(IQUIdType, String)}) gets the first value published
+     * after this snapshot, other types get the value of aCurrent (also when
+     * the id was cleared). Snapshots
+     * that were not published by the SDK (loaded ones) are resolved against
+     * aCurrent directly.
+     * <p>
+     * The result is cached, so messages sharing this snapshot only resolve
+     * it once.
+     * </p>
+     * 
+     * @param aCurrent
+     *            Current snapshot of the SDK
+     * 
+     * @return resolved snapshot or this instance if nothing changed
+     */
+    protected IQUIds resolve(IQUIds aCurrent) {
+        Resolution resolution = this.m_resolution;
+        if ((resolution != null) && (resolution.m_current == aCurrent)) {
+            return resolution.m_result;
+        }
+        IQUIds result = this;
+        if (aCurrent != this) {
+            String[] ids = this.m_ids.clone();
+            boolean changed = false;
+            // fill empty ids with the first value published after this one
+            IQUIds snapshot = this.m_next != null ? this.m_next : aCurrent;
+            for (; snapshot != null; snapshot = snapshot == aCurrent ? null : snapshot.m_next) {
+                for (IQUIdType type : IQUIdType.values()) {
+                    int index = type.getValue();
+                    if (isFillType(type) && (ids[index].length() == 0)
+                            && (snapshot.m_ids[index].length() > 0)) {
+                        ids[index] = snapshot.m_ids[index];
+                        changed = true;
+                    }
+                }
+            }
+            // other types use the current value, types with a fixed value are
+            // never stored in the snapshots of the SDK
+            for (IQUIdType type : IQUIdType.values()) {
+                int index = type.getValue();
+                if (!isFillType(type) && !isFixedType(type)
+                        && !aCurrent.m_ids[index].equals(ids[index])) {
+                    ids[index] = aCurrent.m_ids[index];
+                    changed = true;
+                }
+            }
+            if (changed) {
+                result = new IQUIds(ids, this.m_version);
+                // the result contains everything published up to aCurrent, so
+                // resolving it again continues with the snapshots after it
+                result.m_next = aCurrent;
+            }
+        }
+        this.m_resolution = new Resolution(aCurrent, result);
+        return result;
+    }
+
+    /**
+     * Returns a snapshot updated with a new value for a certain type. For
+     * certain types the id only gets updated if it is empty.
+     * 
+     * @param aType
+     *            Type to update
+     * @param aNewValue
+     *            New value to use
+     * 
+     * @return new snapshot or this instance if the ids did not change
+     */
+    protected IQUIds update(IQUIdType aType, String aNewValue) {
+        // exit for certain types if the current value is not empty.
+        if (isFillType(aType) && (this.get(aType).length() > 0)) {
+            return this;
+        }
+        return this.with(aType, aNewValue);
+    }
+
+    /**
+     * Save the ids.
+     * 
+     * @param aBuffer
+     *            Buffer to write values to.
      */
-    protected void save(DataOutput anOutput) throws IOException {
+    protected void save(IQUDataBuffer aBuffer) {
         // process each type and write those with non empty values
         for (IQUIdType type : IQUIdType.values()) {
             String value = this.get(type);
             if (value.length() > 0) {
-                anOutput.writeByte(type.getValue());
-                anOutput.writeUTF(value);
+                aBuffer.writeByte(type.getValue());
+                aBuffer.writeString(value);
             }
         }
         // store -1 to indicate there are no more keys
-        anOutput.writeByte(-1);
+        aBuffer.writeByte(-1);
     }
 
     /**
-     * Load the ids.
+     * Load ids. If the loaded ids are the same as the ids of aShared, aShared
+     * is returned so messages loaded after each other share their ids.
+     * 
+     * @param aBuffer
+     *            Buffer to read values from.
+     * @param aShared
+     *            Snapshot to return if it contains the same ids (can be null)
      * 
-     * @param anInput
-     *            Input to read value from.
+     * @return loaded ids
      * 
      * @throws IOException
      *             (if loading fails)
      */
-    protected void load(DataInput anInput) throws IOException {
-        this.clearIds();
-        for (int key = anInput.readByte(); key >= 0; key = anInput.readByte()) {
-            this.m_ids[key] = anInput.readUTF();
+    protected static IQUIds load(IQUDataBuffer aBuffer, IQUIds aShared) throws IOException {
+        String[] ids = new String[COUNT];
+        for (int index = 0; index < COUNT; index++) {
+            ids[index] = "";
+        }
+        for (int key = aBuffer.readByte(); key >= 0; key = aBuffer.readByte()) {
+            if (key >= COUNT) {
+                throw new IOException("invalid id type " + key);
+            }
+            ids[key] = aBuffer.readString();
+        }
+        if ((aShared != null) && Arrays.equals(aShared.m_ids, ids)) {
+            return aShared;
         }
+        return new IQUIds(ids, 0);
     }
 
     /**
-     * Returns a copy of this instance.
+     * Returns the number of characters used by the stored ids.
      * 
-     * @return IQUIds instance containing the same ids.
+     * @return number of characters
      */
-    @SuppressWarnings({"CloneDoesntDeclareCloneNotSupportedException",
-      "CloneDoesntCallSuperClone"})
-    protected IQUIds clone() {
-        return new IQUIds(this);
+    protected int getSize() {
+        int result = 0;
+        for (String id : this.m_ids) {
+            result += id.length();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the version of the snapshot. Every change of an id increases
+     * the version; loaded snapshots have version 0.
+     * 
+     * @return version number
+     */
+    protected long getVersion() {
+        return this.m_version;
     }
 
     /**
      * Returns ids as JSON formatted string; only non empty ids are returned.
+     * The string is created once.
      * 
      * @return JSON formatted string
      */
     protected String toJSONString() {
+        String result = this.m_cachedJSONString;
+        if (result == null) {
+            result = this.buildJSONString();
+            this.m_cachedJSONString = result;
+        }
+        return result;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Builds JSON formatted string from the non empty ids.
+     * 
+     * @return JSON formatted string
+     */
+    private String buildJSONString() {
         // use JSON object to create JSON string
         JSONObject json = new JSONObject();
         try {
@@ -191,10 +431,6 @@ class IQUIds {
         return json.toString();
     }
 
-    //
-    // PRIVATE METHODS
-    //
-
     /**
      * Returns property name for use with JSON formatted definitions.
      * 
@@ -229,11 +465,55 @@ class IQUIds {
     }
 
     /**
-     * Clear all stored ids.
+     * Checks if an id type is only set when it is still empty.
+     * 
+     * @param aType
+     *            Type to check
+     * 
+     * @return <code>true</code> for types that keep their first value
      */
-    private void clearIds() {
-        for (int index = 0; index < this.m_ids.length; index++) {
-            this.m_ids[index] = "";
+    private static boolean isFillType(IQUIdType aType) {
+        switch (aType) {
+            case CUSTOM:
+            case FACEBOOK:
+            case TWITTER:
+            case GOOGLE_PLUS:
+            case SDK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks if an id type has a fixed value determined by the device.
+     * 
+     * @param aType
+     *            Type to check
+     * 
+     * @return <code>true</code> for types that are not stored
+     */
+    private static boolean isFixedType(IQUIdType aType) {
+        switch (aType) {
+            case ANDROID_ID:
+            case ANDROID_SERIAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines the size of the ids array.
+     * 
+     * @return the highest id type value + 1
+     */
+    private static int getCount() {
+        int result = 0;
+        for (IQUIdType type : IQUIdType.values()) {
+            // use +1 since the value must be a valid index into the array
+            result = Math.max(result, type.getValue() + 1);
         }
+        return result;
     }
 }
@@ -0,0 +1,373 @@
+package com.iqu.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * IQULoopbackTransport does not perform any IO. The POST content is
+ * serialized like it would be for a real transport and the request is
+ * answered with a configurable response code.
+ * <p>
+ * The transport keeps the URL and content of every request, so the batches
+ * can be inspected. Disable recording to only count requests and bytes.
+ * </p>
+ * <p>
+ * Compressed requests are decoded like the server would, so the recorded
+ * content is always the uncompressed JSON; the byte count contains the
+ * number of bytes that would have been sent. Requests using shared
+ * identifiers are recorded as sent; use {@link #expandIdentifiers(byte[])}
+ * to convert them to the format with the ids in every message.
+ * </p>
+ */
+class IQULoopbackTransport implements IQUTransport {
+    //
+    // PRIVATE CONSTS
+    //
+
+    /**
+     * Body returned for successful requests.
+     */
+    private static final String SUCCESS_BODY = "{\"status\":\"ok\"}";
+
+    //
+    // PRIVATE TYPES
+    //
+
+    /**
+     * Output stream that only counts the written bytes.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        /**
+         * Number of bytes written
+         */
+        private long m_count;
+
+        @Override
+        public void write(int aByte) {
+            this.m_count++;
+        }
+
+        @Override
+        public void write(byte[] aData, int anOffset, int aLength) {
+            this.m_count += aLength;
+        }
+    }
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Network that creates the results.
+     */
+    private final IQUNetwork m_network;
+
+    /**
+     * URLs of the recorded requests.
+     */
+    private final List<String> m_urls;
+
+    /**
+     * Content of the recorded requests (null for requests without content).
+     */
+    private final List<byte[]> m_batches;
+
+    /**
+     * See property definition.
+     */
+    private volatile boolean m_recording;
+
+    /**
+     * See property definition.
+     */
+    private volatile int m_responseCode;
+
+    /**
+     * See property definition.
+     */
+    private volatile long m_requestCount;
+
+    /**
+     * See property definition.
+     */
+    private volatile long m_byteCount;
+
+    /**
+     * See property definition.
+     */
+    private volatile long m_uncompressedByteCount;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new instance.
+     *
+     * @param aNetwork
+     *            Network that uses the transport.
+     */
+    protected IQULoopbackTransport(IQUNetwork aNetwork) {
+        this.m_network = aNetwork;
+        this.m_urls = new ArrayList<String>();
+        this.m_batches = new ArrayList<byte[]>();
+        this.m_recording = true;
+        this.m_responseCode = 200;
+        this.m_requestCount = 0;
+        this.m_byteCount = 0;
+        this.m_uncompressedByteCount = 0;
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    @Override
+    public JSONObject send(String anUrl, IQUMessageQueue aPostContent, long aTimeout)
+            throws Exception {
+        if (this.m_network.isCancelled()) {
+            throw new Exception("Sending was cancelled from other thread.");
+        }
+        byte[] content = null;
+        long length = 0;
+        long uncompressedLength = 0;
+        if (aPostContent != null) {
+            boolean compressed = this.m_network.isCompressed(aPostContent);
+            uncompressedLength = aPostContent.getJSONLength();
+            if (this.m_recording) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream(
+                        (int) Math.min(uncompressedLength, Integer.MAX_VALUE));
+                if (compressed) {
+                    this.m_network.writeCompressed(aPostContent, stream);
+                    length = stream.size();
+                    content = this.decompress(stream.toByteArray());
+                } else {
+                    aPostContent.writeJSON(stream);
+                    content = stream.toByteArray();
+                    length = content.length;
+                }
+            } else {
+                CountingOutputStream stream = new CountingOutputStream();
+                if (compressed) {
+                    this.m_network.writeCompressed(aPostContent, stream);
+                } else {
+                    aPostContent.writeJSON(stream);
+                }
+                length = stream.m_count;
+            }
+        }
+        int code;
+        synchronized (this) {
+            this.m_requestCount++;
+            this.m_byteCount += length;
+            this.m_uncompressedByteCount += uncompressedLength;
+            if (this.m_recording) {
+                this.m_urls.add(anUrl);
+                this.m_batches.add(content);
+            }
+            code = this.m_responseCode;
+        }
+        return this.m_network.createResult(code, code < 400 ? SUCCESS_BODY : null,
+                new HashMap<String, List<String>>());
+    }
+
+    @Override
+    public Future<JSONObject> sendAsync(String anUrl, IQUMessageQueue aPostContent,
+            long aTimeout) {
+        // requests are answered right away, so there is nothing to wait for
+        return null;
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+    @Override
+    public void destroy() {
+        this.clear();
+    }
+
+    @Override
+    public double getConnectionReuseRate() {
+        return 1.0;
+    }
+
+    /**
+     * Removes the recorded requests and resets the counters.
+     */
+    protected synchronized void clear() {
+        this.m_urls.clear();
+        this.m_batches.clear();
+        this.m_requestCount = 0;
+        this.m_byteCount = 0;
+        this.m_uncompressedByteCount = 0;
+    }
+
+    /**
+     * Reference decoder of the shared identifiers format (see
+     * {@link IQUMessageQueue}): converts the content of a request to an array
+     * of messages that each contain their ids. Content in that format already
+     * is returned unchanged.
+     *
+     * @param aContent
+     *            UTF-8 encoded content of a request
+     *
+     * @return array of messages in the format { "identifiers":{..},
+     *         "event":{..} }
+     *
+     * @throws Exception
+     *             (if the content is not valid)
+     */
+    protected static JSONArray expandIdentifiers(byte[] aContent) throws Exception {
+        String text = new String(aContent, IQUDataBuffer.UTF8).trim();
+        if (text.startsWith("[")) {
+            return new JSONArray(text);
+        }
+        JSONObject content = new JSONObject(text);
+        JSONArray identifiers = content.getJSONArray("identifiers");
+        JSONArray messages = content.getJSONArray("messages");
+        JSONArray result = new JSONArray();
+        for (int index = 0; index < messages.length(); index++) {
+            JSONObject message = messages.getJSONObject(index);
+            JSONObject expanded = new JSONObject();
+            expanded.put("identifiers",
+                    identifiers.getJSONObject(message.getInt("identifiers")));
+            expanded.put("event", message.getJSONObject("event"));
+            result.put(expanded);
+        }
+        return result;
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * Returns a copy of the recorded URLs.
+     *
+     * @return URL of every recorded request
+     */
+    protected synchronized List<String> getUrls() {
+        return new ArrayList<String>(this.m_urls);
+    }
+
+    /**
+     * Returns a copy of the list of recorded request contents.
+     *
+     * @return UTF-8 encoded content of every recorded request (null for
+     *         requests without content)
+     */
+    protected synchronized List<byte[]> getBatches() {
+        return new ArrayList<byte[]>(this.m_batches);
+    }
+
+    /**
+     * Returns the number of requests since the last call to {@link #clear()}.
+     *
+     * @return number of requests
+     */
+    protected synchronized long getRequestCount() {
+        return this.m_requestCount;
+    }
+
+    /**
+     * Returns the number of content bytes since the last call to
+     * {@link #clear()}. Compressed requests count the compressed bytes.
+     *
+     * @return number of bytes
+     */
+    protected synchronized long getByteCount() {
+        return this.m_byteCount;
+    }
+
+    /**
+     * Returns the number of content bytes before compression since the last
+     * call to {@link #clear()}.
+     *
+     * @return number of bytes
+     */
+    protected synchronized long getUncompressedByteCount() {
+        return this.m_uncompressedByteCount;
+    }
+
+    /**
+     * Returns the recording state.
+     *
+     * @return <code>true</code> if the requests are recorded.
+     */
+    protected boolean getRecording() {
+        return this.m_recording;
+    }
+
+    /**
+     * Sets the recording state. When not recording, only the counters are
+     * updated.
+     *
+     * @param aValue
+     *            New recording state
+     */
+    protected void setRecording(boolean aValue) {
+        this.m_recording = aValue;
+    }
+
+    /**
+     * Returns the response code returned for every request.
+     *
+     * @return response code
+     */
+    protected int getResponseCode() {
+        return this.m_responseCode;
+    }
+
+    /**
+     * Sets the response code returned for every request. Codes of 400 and
+     * higher result in a failed request.
+     *
+     * @param aValue
+     *            New response code
+     */
+    protected void setResponseCode(int aValue) {
+        this.m_responseCode = aValue;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Decodes gzip compressed content.
+     *
+     * @param aData
+     *            Compressed content
+     *
+     * @return uncompressed content
+     *
+     * @throws IOException
+     *             (if the content is not valid gzip data)
+     */
+    private byte[] decompress(byte[] aData) throws IOException {
+        InputStream input = new GZIPInputStream(new ByteArrayInputStream(aData));
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(aData.length * 4);
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
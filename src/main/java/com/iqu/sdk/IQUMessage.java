@@ -1,7 +1,5 @@
 package com.iqu.sdk;
 
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.IOException;
 
 import org.json.JSONObject;
@@ -9,10 +7,31 @@ import org.json.JSONObject;
 /**
  * IQUMessage encapsulates a single message that will be sent to the IQU server.
  * A message consists of an event and several ids. The event will not change,
- * the ids might change before the message is sent.
+ * the ids might change before the message is sent. The ids are an immutable
+ * snapshot that is shared with other messages; ids that were still empty when
+ * the message was created are resolved when the message is sent.
  */
 @SuppressWarnings("unused")
 class IQUMessage {
+    //
+    // PROTECTED CONST
+    //
+
+    /**
+     * Priority of messages that can be removed first when the queue is full.
+     */
+    protected static final int PRIORITY_LOW = 0;
+
+    /**
+     * Priority of most messages.
+     */
+    protected static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Priority of messages that should be kept as long as possible.
+     */
+    protected static final int PRIORITY_HIGH = 2;
+
     //
     // PRIVATE VARIABLES
     //
@@ -33,7 +52,7 @@ class IQUMessage {
     private volatile String m_eventType;
 
     /**
-     * The ids.
+     * The ids (shared snapshot).
      */
     private volatile IQUIds m_ids;
 
@@ -42,6 +61,26 @@ class IQUMessage {
      */
     private volatile IQUMessageQueue m_queue;
 
+    /**
+     * See property definition.
+     */
+    private volatile long m_sequence;
+
+    /**
+     * See property definition.
+     */
+    private volatile int m_size;
+
+    /**
+     * Cached UTF-8 encoded JSON string or null if it has to be created.
+     */
+    private volatile byte[] m_cachedJSONBytes;
+
+    /**
+     * Cached UTF-8 encoded event part or null if it has to be created.
+     */
+    private volatile byte[] m_cachedEventBytes;
+
     //
     // PROTECTED CONSTRUCTOR
     //
@@ -50,7 +89,7 @@ class IQUMessage {
      * Initializes a new message instance and set the ids and event.
      * 
      * @param anIds
-     *            Ids to use (a copy is stored)
+     *            Ids to use (the snapshot is shared, not copied)
      * @param anEvent
      *            Event the message encapsulates
      */
@@ -59,10 +98,13 @@ class IQUMessage {
         this.m_event = anEvent.toString();
         // get type
         this.m_eventType = anEvent.optString("type", "");
-        // use copy of ids.
-        this.m_ids = anIds.clone();
+        // ids are immutable, so the snapshot can be shared
+        this.m_ids = anIds;
+        this.m_size = this.calculateSize();
         // no queue
         this.m_queue = null;
+        // not stored
+        this.m_sequence = 0;
     }
 
     /**
@@ -71,8 +113,10 @@ class IQUMessage {
     protected IQUMessage() {
         this.m_event = "";
         this.m_eventType = "";
-        this.m_ids = new IQUIds();
+        this.m_ids = IQUIds.EMPTY;
+        this.m_size = 0;
         this.m_queue = null;
+        this.m_sequence = 0;
     }
 
     //
@@ -85,77 +129,44 @@ class IQUMessage {
     protected void destroy() {
         this.m_next = null;
         this.m_queue = null;
-        if (this.m_ids != null) {
-            this.m_ids.destroy();
-            this.m_ids = null;
-        }
+        this.m_cachedJSONBytes = null;
+        this.m_cachedEventBytes = null;
+        this.m_ids = null;
     }
 
     /**
-     * Save message data. This will reset the dirty stored state.
+     * Save message data.
      * 
-     * @param anOutput
-     *            Object instance implementing the DataOutput interface.
-     * 
-     * @throws IOException
-     *             (if saving fails)
+     * @param aBuffer
+     *            Buffer to write the message to.
      */
-    protected void save(DataOutput anOutput) throws IOException {
-        anOutput.writeUTF(this.m_event);
-        anOutput.writeUTF(this.m_eventType);
-        this.m_ids.save(anOutput);
+    protected void save(IQUDataBuffer aBuffer) {
+        aBuffer.writeString(this.m_event);
+        aBuffer.writeString(this.m_eventType);
+        // store the ids as they are known now, later changes are stored as
+        // update records
+        IQUIds current = IQUSDK.instance().ids();
+        (current == null ? this.m_ids : this.m_ids.resolve(current)).save(aBuffer);
     }
 
     /**
      * Load message data.
      * 
-     * @param anInput
-     *            Object instance implementing the DataInput interface.
+     * @param aBuffer
+     *            Buffer to read the message from.
+     * @param aShared
+     *            Ids to share if the loaded ids are the same (can be null)
      * 
      * @throws IOException
      *             (if loading fails)
      */
-    protected void load(DataInput anInput) throws IOException {
-        this.m_event = anInput.readUTF();
-        this.m_eventType = anInput.readUTF();
-        this.m_ids.load(anInput);
-    }
-
-    /**
-     * Update an id with a new value. For certain types the id only gets updated
-     * if it is empty.
-     * 
-     * @param aType
-     *            Type to update
-     * @param aNewValue
-     *            New value to use
-     */
-    protected void updateId(IQUIdType aType, String aNewValue) {
-        // get current value and exit for certain types if the current value is
-        // not empty.
-        String currentValue = this.m_ids.get(aType);
-        switch (aType) {
-            case CUSTOM:
-            case FACEBOOK:
-            case TWITTER:
-            case GOOGLE_PLUS:
-            case SDK:
-                if (currentValue.length() > 0) {
-                    return;
-                }
-                break;
-            default:
-                // prevent lint warning
-                break;
-        }
-        if (!currentValue.equals(aNewValue)) {
-            this.m_ids.set(aType, aNewValue);
-            // message changed
-            if (this.m_queue != null) {
-                this.m_queue.onMessageChanged(this);
-            }
-        }
-
+    protected void load(IQUDataBuffer aBuffer, IQUIds aShared) throws IOException {
+        this.m_event = aBuffer.readString();
+        this.m_eventType = aBuffer.readString();
+        this.m_ids = IQUIds.load(aBuffer, aShared);
+        this.m_size = this.calculateSize();
+        this.m_cachedJSONBytes = null;
+        this.m_cachedEventBytes = null;
     }
 
     /**
@@ -175,6 +186,40 @@ class IQUMessage {
                 + this.m_event + "}";
     }
 
+    /**
+     * Returns the UTF-8 encoded form of {@link #toJSONString()}. The bytes are
+     * cached until one of the ids changes; the returned array should not be
+     * modified.
+     * 
+     * @return UTF-8 encoded JSON formatted object definition
+     */
+    protected byte[] toJSONBytes() {
+        byte[] result = this.m_cachedJSONBytes;
+        if (result == null) {
+            result = this.toJSONString().getBytes(IQUDataBuffer.UTF8);
+            this.m_cachedJSONBytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the UTF-8 encoded event part used when the identifiers are
+     * written separately (see {@link IQUMessageQueue#getSharedIdentifiers()}):
+     * the event followed by the closing bracket of the message object. The
+     * event never changes, so the bytes stay cached; the returned array
+     * should not be modified.
+     * 
+     * @return UTF-8 encoded JSON formatted event and "}"
+     */
+    protected byte[] toEventJSONBytes() {
+        byte[] result = this.m_cachedEventBytes;
+        if (result == null) {
+            result = (this.m_event + "}").getBytes(IQUDataBuffer.UTF8);
+            this.m_cachedEventBytes = result;
+        }
+        return result;
+    }
+
     //
     // PROTECTED PROPERTIES
     //
@@ -226,4 +271,107 @@ class IQUMessage {
     protected String getEventType() {
         return this.m_eventType;
     }
+
+    /**
+     * The ids property contains the ids snapshot of the message.
+     * 
+     * @return ids snapshot
+     */
+    protected IQUIds getIds() {
+        return this.m_ids;
+    }
+
+    /**
+     * Sets the ids property. The cached JSON data is cleared and the queue
+     * is notified if the snapshot changes.
+     * 
+     * @param aValue
+     *            New ids snapshot
+     * 
+     * @return <code>true</code> if the message changed, <code>false</code> if
+     *         not.
+     */
+    protected boolean setIds(IQUIds aValue) {
+        if (this.m_ids == aValue) {
+            return false;
+        }
+        this.m_ids = aValue;
+        this.m_cachedJSONBytes = null;
+        // message changed
+        if (this.m_queue != null) {
+            this.m_queue.onMessageChanged(this);
+        }
+        return true;
+    }
+
+    /**
+     * The user key property identifies the user the message belongs to. The
+     * key is the SDK id, which does not change when other ids are set or
+     * cleared, so all messages of a user have the same key.
+     * 
+     * @return SDK id
+     */
+    protected String getUserKey() {
+        return this.m_ids.get(IQUIdType.SDK);
+    }
+
+    /**
+     * The sequence property contains the sequence number assigned by the
+     * journal when the message was stored.
+     * 
+     * @return sequence number or 0 if the message has not been stored
+     */
+    protected long getSequence() {
+        return this.m_sequence;
+    }
+
+    /**
+     * Sets the sequence property.
+     * 
+     * @param aValue
+     *            Sequence number assigned by the journal.
+     */
+    protected void setSequence(long aValue) {
+        this.m_sequence = aValue;
+    }
+
+    /**
+     * The priority property determines which messages are removed first when
+     * the queue is full. Heartbeats have the lowest and revenue events the
+     * highest priority.
+     * 
+     * @return one of the PRIORITY_ constants
+     */
+    protected int getPriority() {
+        if (IQUSDK.EVENT_HEARTBEAT.equals(this.m_eventType)) {
+            return PRIORITY_LOW;
+        }
+        if (IQUSDK.EVENT_REVENUE.equals(this.m_eventType)) {
+            return PRIORITY_HIGH;
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * The size property contains the estimated size of the message. The value
+     * is determined when the message is created or loaded.
+     * 
+     * @return size in characters
+     */
+    protected int getSize() {
+        return this.m_size;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Estimates the size of the message.
+     * 
+     * @return number of characters used by the event and ids
+     */
+    private int calculateSize() {
+        return this.m_event.length() + this.m_eventType.length() + this.m_ids.getSize();
+    }
 }
@@ -0,0 +1,171 @@
+package com.iqu.sdk;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * IQUMessageInbox collects new messages from multiple threads without
+ * locking. Producers push messages on a linked stack with a compare-and-set
+ * operation; the consumer takes all messages at once and moves them in the
+ * order they were added to a {@link IQUMessageQueue}.
+ * <p>
+ * The inbox uses the next property of the messages, so no additional objects
+ * are created. Calls to {@link #drainTo(IQUMessageQueue)} and
+ * {@link #clear()} must not run at the same time; the SDK makes sure of this
+ * by calling them while holding the lock of the pending message queue.
+ * </p>
+ */
+class IQUMessageInbox {
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Newest message; the next property links to the message added before.
+     */
+    private final AtomicReference<IQUMessage> m_head;
+
+    /**
+     * See property definition.
+     */
+    private final AtomicInteger m_count;
+
+    /**
+     * See property definition.
+     */
+    private final AtomicLong m_size;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new empty inbox.
+     */
+    protected IQUMessageInbox() {
+        this.m_head = new AtomicReference<IQUMessage>(null);
+        this.m_count = new AtomicInteger(0);
+        this.m_size = new AtomicLong(0);
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Adds a message to the inbox. This method can be called from any thread.
+     *
+     * @param aMessage
+     *            Message to add
+     *
+     * @return number of messages in the inbox including aMessage
+     */
+    protected int offer(IQUMessage aMessage) {
+        // update the counters first, so they never drop below zero while a
+        // message is drained
+        int result = this.m_count.incrementAndGet();
+        this.m_size.addAndGet(aMessage.getSize());
+        IQUMessage head;
+        do {
+            head = this.m_head.get();
+            aMessage.setNext(head);
+        } while (!this.m_head.compareAndSet(head, aMessage));
+        return result;
+    }
+
+    /**
+     * Moves all messages to the end of a queue, in the order they were added.
+     *
+     * @param aQueue
+     *            Queue to add the messages to
+     *
+     * @return number of messages moved
+     */
+    protected int drainTo(IQUMessageQueue aQueue) {
+        IQUMessage first = this.take();
+        int result = 0;
+        while (first != null) {
+            IQUMessage next = first.getNext();
+            first.setNext(null);
+            aQueue.add(first);
+            first = next;
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Removes and destroys all messages.
+     */
+    protected void clear() {
+        IQUMessage first = this.take();
+        while (first != null) {
+            IQUMessage next = first.getNext();
+            first.destroy();
+            first = next;
+        }
+    }
+
+    /**
+     * Checks if the inbox contains any message.
+     *
+     * @return <code>true</code> if the inbox is empty
+     */
+    protected boolean isEmpty() {
+        return this.m_head.get() == null;
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * The count property contains the number of messages in the inbox. The
+     * value can include a message that is still being added.
+     *
+     * @return number of messages
+     */
+    protected int getCount() {
+        return this.m_count.get();
+    }
+
+    /**
+     * The size property contains the estimated size of all messages in the
+     * inbox.
+     *
+     * @return size in characters
+     */
+    protected long getSize() {
+        return this.m_size.get();
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Takes all messages from the inbox and updates the counters.
+     *
+     * @return oldest message, linked to the newer messages via the next
+     *         property, or null if the inbox was empty
+     */
+    private IQUMessage take() {
+        IQUMessage message = this.m_head.getAndSet(null);
+        // reverse the chain, so the oldest message becomes the first
+        IQUMessage first = null;
+        int count = 0;
+        long size = 0;
+        while (message != null) {
+            IQUMessage next = message.getNext();
+            message.setNext(first);
+            first = message;
+            message = next;
+            count++;
+            size += first.getSize();
+        }
+        this.m_count.addAndGet(-count);
+        this.m_size.addAndGet(-size);
+        return first;
+    }
+}
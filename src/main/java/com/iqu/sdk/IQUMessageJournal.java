@@ -0,0 +1,828 @@
+package com.iqu.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * IQUMessageJournal stores messages in an append-only journal that is made up
+ * of one or more segment files.
+ * <p>
+ * Every stored message gets a sequence number. New messages are appended to
+ * the active segment, messages that have been sent are dropped by moving the
+ * head sequence forward. Segments before the first segment containing a
+ * message that has not been sent are removed by {@link #compact()}. The cost
+ * of storing messages therefore depends on the number of new messages and not
+ * on the number of messages waiting to be sent.
+ * </p>
+ * <p>
+ * Every record starts with a marker, the length of the payload and a CRC-32C
+ * checksum of the payload. Records that fail the check are skipped, so a
+ * corrupt byte only loses the record containing it. Strings in the payload are
+ * stored as length prefixed UTF-8 (see {@link IQUDataBuffer}).
+ * </p>
+ */
+class IQUMessageJournal {
+    //
+    // PRIVATE CONST
+    //
+
+    /**
+     * Prefix of the segment file names; the segment index and extension are
+     * added to it.
+     */
+    private static final String SEGMENT_PREFIX = "IQUSDK_journal_";
+
+    /**
+     * Extension of the segment files.
+     */
+    private static final String SEGMENT_EXTENSION = ".bin";
+
+    /**
+     * Name of file storing the head sequence.
+     */
+    private static final String HEAD_FILE_NAME = "IQUSDK_journal.head";
+
+    /**
+     * Name of file previous SDK versions stored all messages in.
+     */
+    private static final String LEGACY_FILE_NAME = "IQUSDK_messages.bin";
+
+    /**
+     * Version of stored data. This value should be increased whenever the
+     * format of the segments or the stored messages changes.
+     */
+    private static final int FILE_VERSION = 2;
+
+    /**
+     * Version of the file previous SDK versions stored all messages in, it
+     * used modified UTF-8 strings without record framing.
+     */
+    private static final int LEGACY_FILE_VERSION = 1;
+
+    /**
+     * Version of the head file.
+     */
+    private static final int HEAD_VERSION = 1;
+
+    /**
+     * Marker at the start of every record, used to find the next record after
+     * a corrupt part.
+     */
+    private static final int RECORD_MARKER = 0x4951;
+
+    /**
+     * Size of the record header: marker, payload length and checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = 10;
+
+    /**
+     * Once the active segment reaches this size, a new segment is started.
+     */
+    private static final int SEGMENT_SIZE = 256 * 1024;
+
+    //
+    // PROTECTED CONST
+    //
+
+    /**
+     * Record containing a message.
+     */
+    protected static final int RECORD_MESSAGE = 1;
+
+    /**
+     * Record containing an id update for all previously stored messages.
+     */
+    protected static final int RECORD_UPDATE_ID = 2;
+
+    /**
+     * Record marking a previously stored message as removed.
+     */
+    protected static final int RECORD_REMOVE = 3;
+
+    //
+    // PRIVATE TYPES
+    //
+
+    /**
+     * Information about a segment file.
+     */
+    private static class Segment {
+        /**
+         * Index used in the file name.
+         */
+        public int index;
+
+        /**
+         * The segment file.
+         */
+        public File file;
+
+        /**
+         * Highest sequence number stored in the segment (0 if none).
+         */
+        public long lastSequence;
+    }
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Folder the journal files are stored in.
+     */
+    private final File m_directory;
+
+    /**
+     * Known segments, ordered by index.
+     */
+    private final ArrayList<Segment> m_segments;
+
+    /**
+     * Segment new records are appended to (null if none is open).
+     */
+    private Segment m_activeSegment;
+
+    /**
+     * Stream to the active segment.
+     */
+    private DataOutputStream m_activeStream;
+
+    /**
+     * Buffer used to serialize a record before it is written.
+     */
+    private final IQUDataBuffer m_recordBuffer;
+
+    /**
+     * Buffer used to read records.
+     */
+    private final IQUDataBuffer m_recordReader;
+
+    /**
+     * Sequences of removed messages found while loading.
+     */
+    private final HashSet<Long> m_removedSequences;
+
+    /**
+     * All messages with a sequence equal or below the head have been sent.
+     */
+    private long m_headSequence;
+
+    /**
+     * Sequence that will be assigned to the next appended message.
+     */
+    private long m_nextSequence;
+
+    /**
+     * First sequence assigned since the journal was opened; messages with
+     * this sequence or higher are already in memory.
+     */
+    private long m_sessionSequence;
+
+    /**
+     * True once the segments have been scanned.
+     */
+    private boolean m_opened;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Initializes the instance for a certain folder. The files are not
+     * accessed until they are needed.
+     *
+     * @param aDirectory
+     *            Folder to store the journal files in.
+     */
+    protected IQUMessageJournal(File aDirectory) {
+        this.m_directory = aDirectory;
+        this.m_segments = new ArrayList<Segment>();
+        this.m_activeSegment = null;
+        this.m_activeStream = null;
+        this.m_recordBuffer = new IQUDataBuffer(1024);
+        this.m_recordReader = new IQUDataBuffer(16);
+        this.m_removedSequences = new HashSet<Long>();
+        this.m_headSequence = 0;
+        this.m_nextSequence = 1;
+        this.m_sessionSequence = 1;
+        this.m_opened = false;
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Closes the active segment and clears references.
+     */
+    protected synchronized void destroy() {
+        this.closeActiveSegment();
+        this.m_segments.clear();
+        this.m_opened = false;
+    }
+
+    /**
+     * Appends a message to the journal and assigns a sequence number to the
+     * message. The data might be buffered, call {@link #flush()} to make sure
+     * it is written to the file.
+     *
+     * @param aMessage
+     *            Message to append.
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected synchronized void append(IQUMessage aMessage) throws IOException {
+        DataOutputStream stream = this.getActiveStream();
+        long sequence = this.m_nextSequence;
+        IQUDataBuffer buffer = this.m_recordBuffer;
+        buffer.reset();
+        buffer.writeByte(RECORD_MESSAGE);
+        buffer.writeLong(sequence);
+        aMessage.save(buffer);
+        this.writeRecord(stream, buffer);
+        this.m_nextSequence++;
+        aMessage.setSequence(sequence);
+        this.m_activeSegment.lastSequence = sequence;
+    }
+
+    /**
+     * Appends an id update. When loading, the update is applied to every
+     * message stored before the update.
+     *
+     * @param aType
+     *            Id type that was updated.
+     * @param aNewValue
+     *            New value of the id.
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected synchronized void appendUpdateId(IQUIdType aType, String aNewValue)
+            throws IOException {
+        DataOutputStream stream = this.getActiveStream();
+        IQUDataBuffer buffer = this.m_recordBuffer;
+        buffer.reset();
+        buffer.writeByte(RECORD_UPDATE_ID);
+        buffer.writeByte(aType.getValue());
+        buffer.writeString(aNewValue);
+        this.writeRecord(stream, buffer);
+    }
+
+    /**
+     * Appends a removal of a stored message. Used when a message is removed
+     * from the queue without being sent, so it will no longer be loaded.
+     *
+     * @param aSequence
+     *            Sequence of the removed message.
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected synchronized void appendRemove(long aSequence) throws IOException {
+        DataOutputStream stream = this.getActiveStream();
+        IQUDataBuffer buffer = this.m_recordBuffer;
+        buffer.reset();
+        buffer.writeByte(RECORD_REMOVE);
+        buffer.writeLong(aSequence);
+        this.writeRecord(stream, buffer);
+    }
+
+    /**
+     * Writes any buffered data to the active segment. A new segment is started
+     * with the next append if the active segment became too large.
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected synchronized void flush() throws IOException {
+        if (this.m_activeStream != null) {
+            this.m_activeStream.flush();
+            if (this.m_activeStream.size() >= SEGMENT_SIZE) {
+                this.closeActiveSegment();
+            }
+        }
+    }
+
+    /**
+     * Marks all messages up to and including a certain sequence as sent. They
+     * will no longer be loaded.
+     *
+     * @param aSequence
+     *            Sequence of last sent message.
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected synchronized void acknowledge(long aSequence) throws IOException {
+        this.open();
+        if (aSequence > this.m_headSequence) {
+            this.m_headSequence = aSequence;
+            this.writeHead();
+        }
+    }
+
+    /**
+     * Deletes the segments before the first segment that contains a message
+     * that has not been acknowledged. Later segments are kept even if they
+     * only contain acknowledged messages or no messages at all, since their
+     * remove and id update records still apply to unacknowledged messages. If
+     * all messages are acknowledged, the active segment is deleted as well.
+     */
+    protected synchronized void compact() {
+        this.open();
+        boolean allAcknowledged = this.m_nextSequence - 1 <= this.m_headSequence;
+        if (allAcknowledged) {
+            this.closeActiveSegment();
+        }
+        int removed = 0;
+        while (removed < this.m_segments.size()) {
+            Segment segment = this.m_segments.get(removed);
+            if ((segment == this.m_activeSegment)
+                    || (!allAcknowledged && (segment.lastSequence > this.m_headSequence))) {
+                break;
+            }
+            if (!segment.file.delete() && segment.file.exists()) {
+                break;
+            }
+            removed++;
+        }
+        this.m_segments.subList(0, removed).clear();
+        if (IQUSDK.DEBUG && (removed > 0)) {
+            IQUSDK.instance().addLog("[Journal] removed " + removed + " segment(s)");
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while the segment files use more than a
+     * certain size. The messages in the deleted segments are acknowledged.
+     * The active segment is never deleted. This method is meant for journals
+     * that are only appended to, like the dead-letter store.
+     *
+     * @param aMaxSize
+     *            Maximum size in bytes of all segment files
+     *
+     * @return number of segments deleted
+     */
+    protected synchronized int limitSize(long aMaxSize) {
+        this.open();
+        long size = 0;
+        for (Segment segment : this.m_segments) {
+            size += segment.file.length();
+        }
+        int removed = 0;
+        long headSequence = this.m_headSequence;
+        while ((size > aMaxSize) && (removed < this.m_segments.size())) {
+            Segment segment = this.m_segments.get(removed);
+            if (segment == this.m_activeSegment) {
+                break;
+            }
+            long length = segment.file.length();
+            if (!segment.file.delete() && segment.file.exists()) {
+                break;
+            }
+            size -= length;
+            headSequence = Math.max(headSequence, segment.lastSequence);
+            removed++;
+        }
+        this.m_segments.subList(0, removed).clear();
+        if (headSequence > this.m_headSequence) {
+            try {
+                this.acknowledge(headSequence);
+            } catch (IOException error) {
+                this.logError("acknowledging", error);
+            }
+        }
+        if (IQUSDK.DEBUG && (removed > 0)) {
+            IQUSDK.instance().addLog("[Journal] removed " + removed + " segment(s)");
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all stored messages and deletes the segment files.
+     *
+     * @throws IOException
+     *             (if writing the head fails)
+     */
+    protected synchronized void clear() throws IOException {
+        this.open();
+        this.acknowledge(this.m_nextSequence - 1);
+        this.compact();
+    }
+
+    /**
+     * Loads all stored messages that have not been acknowledged and were
+     * stored in a previous session. The messages are added to a queue.
+     *
+     * @param aQueue
+     *            Queue to add the messages to.
+     *
+     * @return number of messages added to aQueue.
+     */
+    protected synchronized int load(IQUMessageQueue aQueue) {
+        this.open();
+        int count = 0;
+        this.m_removedSequences.clear();
+        for (Segment segment : this.m_segments) {
+            if (segment != this.m_activeSegment) {
+                count += this.readSegment(segment, aQueue);
+            }
+        }
+        // removals are applied after all messages have been added
+        if (!this.m_removedSequences.isEmpty()) {
+            count -= aQueue.removeStored(this.m_removedSequences);
+            this.m_removedSequences.clear();
+        }
+        return count;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Scans the folder for the head file and segments and determines the next
+     * sequence to use. This method only performs the scan once.
+     */
+    private void open() {
+        if (this.m_opened) {
+            return;
+        }
+        this.m_opened = true;
+        this.m_headSequence = this.readHead();
+        this.m_segments.clear();
+        File[] files = this.m_directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION)) {
+                    try {
+                        Segment segment = new Segment();
+                        segment.index = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_EXTENSION.length()));
+                        segment.file = file;
+                        segment.lastSequence = 0;
+                        this.insertSegment(segment);
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+        // determine last sequence of each segment
+        long lastSequence = this.m_headSequence;
+        for (Segment segment : this.m_segments) {
+            this.readSegment(segment, null);
+            lastSequence = Math.max(lastSequence, segment.lastSequence);
+        }
+        this.m_nextSequence = lastSequence + 1;
+        // add messages stored by previous SDK versions
+        this.migrateLegacyFile();
+        this.m_sessionSequence = this.m_nextSequence;
+    }
+
+    /**
+     * Inserts a segment in the list, keeping the list ordered by index.
+     *
+     * @param aSegment
+     *            Segment to insert
+     */
+    private void insertSegment(Segment aSegment) {
+        int position = this.m_segments.size();
+        while ((position > 0) && (this.m_segments.get(position - 1).index > aSegment.index)) {
+            position--;
+        }
+        this.m_segments.add(position, aSegment);
+    }
+
+    /**
+     * Reads the records from a segment. Records that are incomplete or fail the
+     * checksum test are skipped.
+     *
+     * @param aSegment
+     *            Segment to read
+     * @param aQueue
+     *            Queue to add messages to or null to only update the last
+     *            sequence of the segment.
+     *
+     * @return number of messages added to aQueue
+     */
+    private int readSegment(Segment aSegment, IQUMessageQueue aQueue) {
+        int count = 0;
+        int skipped = 0;
+        try {
+            byte[] data = this.readFile(aSegment.file);
+            if ((data.length < 4) || (IQUDataBuffer.getInt(data, 0) != FILE_VERSION)) {
+                return 0;
+            }
+            IQUDataBuffer reader = this.m_recordReader;
+            int position = 4;
+            while (position < data.length) {
+                int length = this.getRecordLength(data, position);
+                if (length < 0) {
+                    // not a valid record, search for the next marker
+                    position++;
+                    skipped++;
+                    continue;
+                }
+                reader.wrap(data, position + RECORD_HEADER_SIZE, length);
+                position += RECORD_HEADER_SIZE + length;
+                try {
+                    if (this.processRecord(aSegment, reader, aQueue)) {
+                        count++;
+                    }
+                } catch (IOException error) {
+                    skipped += RECORD_HEADER_SIZE + length;
+                }
+            }
+        } catch (Exception error) {
+            this.logError("reading " + aSegment.file.getName(), error);
+        }
+        if (IQUSDK.DEBUG && (skipped > 0) && (aQueue != null)) {
+            IQUSDK.instance().addLog(
+                    "[Journal] skipped " + skipped + " invalid byte(s) in "
+                            + aSegment.file.getName());
+        }
+        return count;
+    }
+
+    /**
+     * Checks if a valid record starts at a certain position.
+     *
+     * @param aData
+     *            Segment data
+     * @param aPosition
+     *            Position to check
+     *
+     * @return length of the payload or -1 if there is no valid record.
+     */
+    private int getRecordLength(byte[] aData, int aPosition) {
+        if (aPosition + RECORD_HEADER_SIZE > aData.length) {
+            return -1;
+        }
+        if ((((aData[aPosition] & 0xFF) << 8) | (aData[aPosition + 1] & 0xFF)) != RECORD_MARKER) {
+            return -1;
+        }
+        int length = IQUDataBuffer.getInt(aData, aPosition + 2);
+        int start = aPosition + RECORD_HEADER_SIZE;
+        if ((length <= 0) || (length > aData.length - start)) {
+            return -1;
+        }
+        if (IQUCrc32C.calculate(aData, start, length) != IQUDataBuffer.getInt(aData,
+                aPosition + 6)) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Processes the payload of a record.
+     *
+     * @param aSegment
+     *            Segment containing the record
+     * @param aReader
+     *            Buffer wrapping the payload
+     * @param aQueue
+     *            Queue to add messages to or null to only update the last
+     *            sequence of the segment.
+     *
+     * @return <code>true</code> if a message was added to aQueue.
+     *
+     * @throws IOException
+     *             (if the payload is invalid)
+     */
+    private boolean processRecord(Segment aSegment, IQUDataBuffer aReader, IQUMessageQueue aQueue)
+            throws IOException {
+        int type = aReader.readByte();
+        switch (type) {
+            case RECORD_MESSAGE:
+                long sequence = aReader.readLong();
+                aSegment.lastSequence = Math.max(aSegment.lastSequence, sequence);
+                if ((aQueue != null) && (sequence > this.m_headSequence)
+                        && (sequence < this.m_sessionSequence)) {
+                    IQUMessage message = new IQUMessage();
+                    message.load(aReader, aQueue.getLastIds());
+                    message.setSequence(sequence);
+                    aQueue.add(message);
+                    return true;
+                }
+                return false;
+            case RECORD_UPDATE_ID:
+                if (aQueue != null) {
+                    IQUIdType idType = IQUIdType.find(aReader.readByte());
+                    String value = aReader.readString();
+                    if (idType != null) {
+                        aQueue.updateStoredId(idType, value);
+                    }
+                }
+                return false;
+            case RECORD_REMOVE:
+                long removedSequence = aReader.readLong();
+                if (aQueue != null) {
+                    this.m_removedSequences.add(removedSequence);
+                }
+                return false;
+            default:
+                throw new IOException("unknown record type " + type);
+        }
+    }
+
+    /**
+     * Writes a record to a stream.
+     *
+     * @param aStream
+     *            Stream to write to
+     * @param aPayload
+     *            Payload of the record
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    private void writeRecord(DataOutputStream aStream, IQUDataBuffer aPayload) throws IOException {
+        aStream.writeShort(RECORD_MARKER);
+        aStream.writeInt(aPayload.getSize());
+        aStream.writeInt(IQUCrc32C.calculate(aPayload.getData(), 0, aPayload.getSize()));
+        aPayload.writeTo(aStream);
+    }
+
+    /**
+     * Appends the messages stored by previous SDK versions to the journal and
+     * deletes the file they were stored in.
+     */
+    private void migrateLegacyFile() {
+        File file = new File(this.m_directory, LEGACY_FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                int version = input.readInt();
+                if (version == LEGACY_FILE_VERSION) {
+                    int messageCount = input.readInt();
+                    DataOutputStream stream = this.getActiveStream();
+                    IQUMessageMigrator migrator = new IQUMessageMigrator();
+                    IQUDataBuffer buffer = this.m_recordBuffer;
+                    for (int count = messageCount; count > 0; count--) {
+                        buffer.reset();
+                        buffer.writeByte(RECORD_MESSAGE);
+                        buffer.writeLong(this.m_nextSequence);
+                        migrator.convertMessage(input, buffer);
+                        this.writeRecord(stream, buffer);
+                        this.m_activeSegment.lastSequence = this.m_nextSequence++;
+                    }
+                    if (IQUSDK.DEBUG) {
+                        IQUSDK.instance().addLog(
+                                "[Journal] converted " + messageCount + " message(s) from "
+                                        + LEGACY_FILE_NAME);
+                    }
+                } else if (IQUSDK.DEBUG) {
+                    IQUSDK.instance().addLog(
+                            "[Journal] no messages were converted, file uses unsupported version ("
+                                    + version + ")");
+                }
+            } finally {
+                input.close();
+                // the converted messages must be loaded, so use a new segment
+                // for messages of this session
+                this.closeActiveSegment();
+            }
+        } catch (Exception error) {
+            this.logError("converting " + LEGACY_FILE_NAME, error);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Reads the complete contents of a file.
+     *
+     * @param aFile
+     *            File to read
+     *
+     * @return file contents
+     *
+     * @throws IOException
+     *             (if reading fails)
+     */
+    private byte[] readFile(File aFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(aFile, "r");
+        try {
+            byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            return data;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the stream to the active segment, a new segment is created if
+     * there is no active segment.
+     *
+     * @return stream to write records to
+     *
+     * @throws IOException
+     *             (if the segment could not be created)
+     */
+    private DataOutputStream getActiveStream() throws IOException {
+        this.open();
+        if (this.m_activeStream == null) {
+            Segment segment = new Segment();
+            segment.index = this.m_segments.isEmpty() ? 0
+                    : this.m_segments.get(this.m_segments.size() - 1).index + 1;
+            segment.file = new File(this.m_directory, SEGMENT_PREFIX + segment.index
+                    + SEGMENT_EXTENSION);
+            segment.lastSequence = 0;
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(segment.file)));
+            stream.writeInt(FILE_VERSION);
+            this.m_segments.add(segment);
+            this.m_activeSegment = segment;
+            this.m_activeStream = stream;
+        }
+        return this.m_activeStream;
+    }
+
+    /**
+     * Closes the active segment (if any).
+     */
+    private void closeActiveSegment() {
+        if (this.m_activeStream != null) {
+            try {
+                this.m_activeStream.close();
+            } catch (IOException error) {
+                this.logError("closing", error);
+            }
+        }
+        this.m_activeStream = null;
+        this.m_activeSegment = null;
+    }
+
+    /**
+     * Reads the head sequence from the head file.
+     *
+     * @return stored head sequence or 0 if there is none.
+     */
+    private long readHead() {
+        File file = new File(this.m_directory, HEAD_FILE_NAME);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream stream = new DataInputStream(new FileInputStream(file));
+            try {
+                return stream.readInt() == HEAD_VERSION ? stream.readLong() : 0;
+            } finally {
+                stream.close();
+            }
+        } catch (Exception error) {
+            this.logError("reading head", error);
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the head sequence to the head file.
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    private void writeHead() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(this.m_directory, HEAD_FILE_NAME),
+                "rw");
+        try {
+            file.seek(0);
+            file.writeInt(HEAD_VERSION);
+            file.writeLong(this.m_headSequence);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Adds an error to the log.
+     *
+     * @param anAction
+     *            Action that failed
+     * @param anError
+     *            Error that occurred
+     */
+    private void logError(String anAction, Exception anError) {
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog(
+                    "[Journal][Error] While " + anAction + ": " + anError.getClass().getName()
+                            + ": " + anError.getMessage());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.iqu.sdk;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * IQUMessageMigrator converts messages stored by previous SDK versions
+ * (version 1 of the storage format) into the version 2 record format.
+ * <p>
+ * Version 1 stored strings using the modified UTF-8 encoding of
+ * {@link DataInput#readUTF()}. The migrator converts the encoded bytes
+ * directly to standard UTF-8 without creating any strings, so large backlogs
+ * are converted record by record.
+ * </p>
+ */
+class IQUMessageMigrator {
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Buffer for the bytes of a version 1 string.
+     */
+    private final byte[] m_source;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Initializes a new instance.
+     */
+    protected IQUMessageMigrator() {
+        // version 1 strings are at most 65535 bytes
+        this.m_source = new byte[65535];
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Converts a message stored by {@link IQUMessage} using version 1.
+     *
+     * @param anInput
+     *            Input positioned at the start of the message.
+     * @param aTarget
+     *            Buffer to add the converted message to.
+     *
+     * @throws IOException
+     *             (if the message could not be read)
+     */
+    protected void convertMessage(DataInput anInput, IQUDataBuffer aTarget) throws IOException {
+        // event and event type
+        this.convertString(anInput, aTarget);
+        this.convertString(anInput, aTarget);
+        // ids, terminated by -1
+        for (int key = anInput.readByte(); key >= 0; key = anInput.readByte()) {
+            aTarget.writeByte(key);
+            this.convertString(anInput, aTarget);
+        }
+        aTarget.writeByte(-1);
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Converts a modified UTF-8 string to a length prefixed standard UTF-8
+     * string. The encodings only differ for the null character and for
+     * characters outside the basic multilingual plane (which modified UTF-8
+     * stores as two 3 byte surrogates).
+     *
+     * @param anInput
+     *            Input positioned at the start of the string.
+     * @param aTarget
+     *            Buffer to add the converted string to.
+     *
+     * @throws IOException
+     *             (if the string could not be read)
+     */
+    private void convertString(DataInput anInput, IQUDataBuffer aTarget) throws IOException {
+        int length = anInput.readUnsignedShort();
+        byte[] source = this.m_source;
+        anInput.readFully(source, 0, length);
+        int lengthPosition = aTarget.reserveInt();
+        int start = aTarget.getSize();
+        int index = 0;
+        while (index < length) {
+            int value = source[index] & 0xFF;
+            if (value < 0x80) {
+                aTarget.writeByte(value);
+                index++;
+            } else if (((value & 0xE0) == 0xC0) && (index + 1 < length)) {
+                // modified UTF-8 stores the null character as 0xC0 0x80
+                if ((value == 0xC0) && ((source[index + 1] & 0xFF) == 0x80)) {
+                    aTarget.writeByte(0);
+                } else {
+                    aTarget.writeBytes(source, index, 2);
+                }
+                index += 2;
+            } else if (((value & 0xF0) == 0xE0) && (index + 2 < length)) {
+                char high = this.decodeChar(source, index);
+                if (Character.isHighSurrogate(high) && (index + 5 < length)
+                        && ((source[index + 3] & 0xF0) == 0xE0)
+                        && Character.isLowSurrogate(this.decodeChar(source, index + 3))) {
+                    int codePoint = Character.toCodePoint(high, this.decodeChar(source,
+                            index + 3));
+                    aTarget.writeByte(0xF0 | (codePoint >> 18));
+                    aTarget.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                    aTarget.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                    aTarget.writeByte(0x80 | (codePoint & 0x3F));
+                    index += 6;
+                } else {
+                    aTarget.writeBytes(source, index, 3);
+                    index += 3;
+                }
+            } else {
+                throw new IOException("malformed modified UTF-8 string");
+            }
+        }
+        aTarget.setInt(lengthPosition, aTarget.getSize() - start);
+    }
+
+    /**
+     * Decodes a 3 byte modified UTF-8 sequence.
+     *
+     * @param aSource
+     *            Encoded bytes
+     * @param anIndex
+     *            Index of first byte
+     *
+     * @return decoded character
+     */
+    private char decodeChar(byte[] aSource, int anIndex) {
+        return (char) (((aSource[anIndex] & 0x0F) << 12) | ((aSource[anIndex + 1] & 0x3F) << 6)
+                | (aSource[anIndex + 2] & 0x3F));
+    }
+}
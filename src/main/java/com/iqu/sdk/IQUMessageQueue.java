@@ -1,16 +1,27 @@
 package com.iqu.sdk;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-
-import android.content.Context;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * IQUMessageQueue contains a list of IQUMessage instances. It can store the
- * messages to a local storage and return the whole list as a JSON string.
+ * messages in the message journal and return the whole list as a JSON string.
+ * <p>
+ * The JSON string is either an array of messages that each contain their ids
+ * or, when {@link #getSharedIdentifiers() sharedIdentifiers} is set, an
+ * object with a table of the distinct ids and the messages referring to
+ * them by index:
+ * </p>
+ * <p>
+ * { "identifiers":[ {..},.. ], "messages":[ {"identifiers":0,"event":{..}},.. ] }
+ * </p>
  */
 class IQUMessageQueue {
     //
@@ -18,15 +29,18 @@ class IQUMessageQueue {
     //
 
     /**
-     * Name of file to store the messages in.
+     * JSON fragments written around and between the messages.
      */
-    private static final String FILE_NAME = "IQUSDK_messages.bin";
+    private static final byte[] JSON_START = { '[' };
+    private static final byte[] JSON_SEPARATOR = { ',' };
+    private static final byte[] JSON_END = { ']' };
 
     /**
-     * Version of stored data. This value should be increased whenever the
-     * format of the stored messages changes.
+     * JSON fragments of the shared identifiers format.
      */
-    private static final int FILE_VERSION = 1;
+    private static final byte[] SHARED_START = "{\"identifiers\":[".getBytes(IQUDataBuffer.UTF8);
+    private static final byte[] SHARED_MESSAGES = "],\"messages\":[".getBytes(IQUDataBuffer.UTF8);
+    private static final byte[] SHARED_END = { ']', '}' };
 
     //
     // PRIVATE VARS
@@ -43,12 +57,12 @@ class IQUMessageQueue {
     private volatile IQUMessage m_last;
 
     /**
-     * Cached JSON string.
+     * Cached length of the UTF-8 encoded JSON string.
      */
-    private volatile String m_cachedJSONString;
+    private volatile long m_cachedJSONLength;
 
     /**
-     * When true the JSON string should be recreated.
+     * When true the JSON length should be determined again.
      */
     private volatile boolean m_dirtyJSON;
 
@@ -57,6 +71,27 @@ class IQUMessageQueue {
      */
     private volatile boolean m_dirtyStored;
 
+    /**
+     * Number of messages in the queue.
+     */
+    private volatile int m_count;
+
+    /**
+     * Estimated size of all messages in the queue.
+     */
+    private volatile long m_size;
+
+    /**
+     * Number of messages per priority (indexed by the PRIORITY_ constants of
+     * {@link IQUMessage}).
+     */
+    private final int[] m_priorityCounts;
+
+    /**
+     * See property definition.
+     */
+    private volatile boolean m_sharedIdentifiers;
+
     //
     // CONSTRUCTOR
     //
@@ -65,6 +100,7 @@ class IQUMessageQueue {
      * Initializes the instance to an empty queue.
      */
     protected IQUMessageQueue() {
+        this.m_priorityCounts = new int[IQUMessage.PRIORITY_HIGH + 1];
         this.reset();
     }
 
@@ -94,11 +130,16 @@ class IQUMessageQueue {
      * @return number of messages
      */
     protected int getCount() {
-        int result = 0;
-        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
-            result++;
-        }
-        return result;
+        return this.m_count;
+    }
+
+    /**
+     * Returns the estimated size of all messages in the queue.
+     * 
+     * @return size in characters
+     */
+    protected long getSize() {
+        return this.m_size;
     }
 
     /**
@@ -115,6 +156,9 @@ class IQUMessageQueue {
             this.m_last.setNext(aMessage);
         }
         this.m_last = aMessage;
+        this.m_count++;
+        this.m_size += aMessage.getSize();
+        this.m_priorityCounts[aMessage.getPriority()]++;
         // update queue property so the IQUMessage will call onMessageChanged
         aMessage.setQueue(this);
         // queue has changed.
@@ -122,6 +166,68 @@ class IQUMessageQueue {
         this.m_dirtyStored = true;
     }
 
+    /**
+     * Removes messages until the number and size of the messages are within
+     * the limits. Removed messages are destroyed; stored messages are marked
+     * as removed in the journal. The queue is walked at most once per
+     * priority, independent of the number of removed messages.
+     * 
+     * @param aMaxCount
+     *            Maximum number of messages
+     * @param aMaxSize
+     *            Maximum estimated size of all messages
+     * @param aPolicy
+     *            Determines which messages are removed;
+     *            {@link IQUOverflowPolicy#REJECT_NEW} removes the newest
+     *            messages.
+     * 
+     * @return number of messages removed
+     */
+    protected int evict(int aMaxCount, long aMaxSize, IQUOverflowPolicy aPolicy) {
+        if (!this.exceeds(aMaxCount, aMaxSize)) {
+            return 0;
+        }
+        switch (aPolicy) {
+            case DROP_LOWEST_PRIORITY:
+                int result = 0;
+                for (int priority = IQUMessage.PRIORITY_LOW; priority <= IQUMessage.PRIORITY_HIGH;
+                        priority++) {
+                    result += this.evictOldest(priority, aMaxCount, aMaxSize);
+                }
+                return result;
+            case REJECT_NEW:
+                return this.evictNewest(aMaxCount, aMaxSize);
+            default:
+                return this.evictOldest(-1, aMaxCount, aMaxSize);
+        }
+    }
+
+    /**
+     * Removes stored messages. This method is used by the journal while loading
+     * messages.
+     * 
+     * @param aSequences
+     *            Sequences of the messages to remove
+     * 
+     * @return number of messages removed
+     */
+    protected int removeStored(Set<Long> aSequences) {
+        int result = 0;
+        IQUMessage previous = null;
+        IQUMessage message = this.m_first;
+        while (message != null) {
+            IQUMessage next = message.getNext();
+            if (aSequences.contains(message.getSequence())) {
+                this.remove(previous, message, false);
+                result++;
+            } else {
+                previous = message;
+            }
+            message = next;
+        }
+        return result;
+    }
+
     /**
      * Prepend a queue before the current queue. This will move the items from
      * aQueue to this queue.
@@ -137,14 +243,13 @@ class IQUMessageQueue {
      */
     protected void prepend(IQUMessageQueue aQueue, boolean aChangeQueue) {
         if (!aQueue.isEmpty()) {
-            // if this queue is empty, copy cached JSON string and dirty state;
+            // if this queue is empty, copy cached JSON length and dirty state;
             // else reset it.
             if (this.m_first == null) {
-                this.m_cachedJSONString = aQueue.m_cachedJSONString;
+                this.m_cachedJSONLength = aQueue.m_cachedJSONLength;
                 this.m_dirtyJSON = aQueue.m_dirtyJSON;
                 this.m_dirtyStored = aQueue.m_dirtyStored;
             } else {
-                this.m_cachedJSONString = null;
                 this.m_dirtyJSON = true;
                 this.m_dirtyStored = true;
             }
@@ -161,6 +266,11 @@ class IQUMessageQueue {
             }
             // chain starts now with the first message in the chain of aQueue
             this.m_first = first;
+            this.m_count += aQueue.m_count;
+            this.m_size += aQueue.m_size;
+            for (int priority = 0; priority < this.m_priorityCounts.length; priority++) {
+                this.m_priorityCounts[priority] += aQueue.m_priorityCounts[priority];
+            }
             // update queue property?
             if (aChangeQueue) {
                 for (IQUMessage message = first; message != null; message = message.getNext()) {
@@ -172,6 +282,69 @@ class IQUMessageQueue {
         }
     }
 
+    /**
+     * Moves messages from the start of this queue to the end of another queue.
+     * Messages are moved until the maximum number of messages or the maximum
+     * size of the JSON formatted messages is reached; at least one message is
+     * moved if this queue is not empty.
+     * <p>
+     * The queue property of the moved messages is not changed.
+     * </p>
+     * 
+     * @param aQueue
+     *            The queue to add the messages to.
+     * @param aMaxCount
+     *            Maximum number of messages to move
+     * @param aMaxSize
+     *            Maximum length of the UTF-8 encoded JSON formatted messages
+     * 
+     * @return number of messages moved
+     */
+    protected int moveFirst(IQUMessageQueue aQueue, int aMaxCount, long aMaxSize) {
+        if (this.m_first == null) {
+            return 0;
+        }
+        // find last message to move
+        IQUMessage last = this.m_first;
+        int count = 1;
+        long size = last.getSize();
+        long length = last.toJSONBytes().length + 2;
+        this.movePriority(aQueue, last);
+        for (IQUMessage next = last.getNext(); (next != null) && (count < aMaxCount); next = next
+                .getNext()) {
+            long nextLength = next.toJSONBytes().length + 1;
+            if (length + nextLength > aMaxSize) {
+                break;
+            }
+            length += nextLength;
+            size += next.getSize();
+            count++;
+            last = next;
+            this.movePriority(aQueue, last);
+        }
+        // detach the chain and add it to aQueue
+        IQUMessage first = this.m_first;
+        this.m_first = last.getNext();
+        if (this.m_first == null) {
+            this.m_last = null;
+        }
+        last.setNext(null);
+        if (aQueue.m_last == null) {
+            aQueue.m_first = first;
+        } else {
+            aQueue.m_last.setNext(first);
+        }
+        aQueue.m_last = last;
+        aQueue.m_count += count;
+        aQueue.m_size += size;
+        aQueue.m_dirtyJSON = true;
+        aQueue.m_dirtyStored |= this.m_dirtyStored;
+        this.m_count -= count;
+        this.m_size -= size;
+        this.m_dirtyJSON = true;
+        return count;
+    }
+
     /**
      * Destroy the queue. It will call destroy on every message and remove any
      * reference to each message instance.
@@ -180,9 +353,14 @@ class IQUMessageQueue {
      * </p>
      * 
      * @param aClearStorage
-     *            When <code>true</code> clear the persistently stored messages.
+     *            When <code>true</code> remove the messages in this queue from
+     *            persistent storage.
      */
     protected void clear(boolean aClearStorage) {
+        // remove stored messages from the journal
+        if (aClearStorage) {
+            this.acknowledge();
+        }
         IQUMessage message = this.m_first;
         while (message != null) {
             IQUMessage next = message.getNext();
@@ -190,12 +368,139 @@ class IQUMessageQueue {
             message = next;
         }
         this.reset();
-        // delete the local file
-        if (aClearStorage) {
-            IQUSDK.instance().application().deleteFile(FILE_NAME);
+    }
+
+    /**
+     * Destroys the messages after they have been sent while messages before
+     * them have not. Stored messages are marked as removed in the journal
+     * instead of moving the journal head, so the messages before them are
+     * still loaded.
+     * <p>
+     * After this method, the queue will be empty.
+     * </p>
+     */
+    protected void discard() {
+        IQUMessage message = this.m_first;
+        while (message != null) {
+            IQUMessage next = message.getNext();
+            this.remove(null, message, true);
+            message = next;
+        }
+        this.reset();
+    }
+
+    /**
+     * Moves the messages to another journal, for example the dead-letter
+     * store. The messages are appended to aJournal and only removed from the
+     * message journal once they have been written, so a message is never
+     * lost. Messages that could not be written stay in the queue.
+     * 
+     * @param aJournal
+     *            Journal to append the messages to.
+     * 
+     * @return number of messages moved
+     */
+    protected int moveTo(IQUMessageJournal aJournal) {
+        int count = 0;
+        try {
+            for (IQUMessage message = this.m_first; message != null; message = message
+                    .getNext()) {
+                // append assigns a new sequence, restore it so the message can
+                // be removed from the message journal
+                long sequence = message.getSequence();
+                try {
+                    aJournal.append(message);
+                } finally {
+                    message.setSequence(sequence);
+                }
+                count++;
+            }
+        } catch (Exception error) {
+            this.logMoveError(error);
+        }
+        try {
+            aJournal.flush();
+        } catch (Exception error) {
+            this.logMoveError(error);
+            count = 0;
+        }
+        for (int index = 0; index < count; index++) {
+            this.remove(null, this.m_first, true);
+        }
+        if (this.m_first == null) {
+            this.reset();
+        }
+        return count;
+    }
+
+    /**
+     * Copies the messages to an array, in the order they are in the queue.
+     * 
+     * @param aMessages
+     *            Array to copy to, must have room for all messages.
+     * 
+     * @return number of messages copied
+     */
+    protected int copyTo(IQUMessage[] aMessages) {
+        int count = 0;
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            aMessages[count++] = message;
+        }
+        return count;
+    }
+
+    /**
+     * Determines which messages of an earlier copy (see
+     * {@link #copyTo(IQUMessage[])}) are no longer in the queue. The messages
+     * still in the queue must be in the same order as in the copy.
+     * 
+     * @param aMessages
+     *            Messages copied before
+     * @param aCount
+     *            Number of messages copied
+     * @param aRemoved
+     *            Receives for every copied message if it was removed
+     */
+    protected void findRemoved(IQUMessage[] aMessages, int aCount, boolean[] aRemoved) {
+        IQUMessage message = this.m_first;
+        for (int index = 0; index < aCount; index++) {
+            aRemoved[index] = aMessages[index] != message;
+            if (!aRemoved[index]) {
+                message = message.getNext();
+            }
         }
     }
 
+    /**
+     * Adds the user keys of all messages to a set.
+     * 
+     * @param aKeys
+     *            Set to add the keys to
+     */
+    protected void addUserKeys(Set<String> aKeys) {
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            aKeys.add(message.getUserKey());
+        }
+    }
+
+    /**
+     * Checks if at least one message belongs to one of the users in a set.
+     * 
+     * @param aKeys
+     *            User keys to check
+     * 
+     * @return <code>true</code> if at least one message has a user key in
+     *         aKeys.
+     */
+    protected boolean hasUserKey(Set<String> aKeys) {
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            if (aKeys.contains(message.getUserKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Clears the references to the messages, but don't destroy the messages
      * themselves.
@@ -206,35 +511,34 @@ class IQUMessageQueue {
     protected void reset() {
         this.m_first = null;
         this.m_last = null;
-        this.m_cachedJSONString = null;
+        this.m_cachedJSONLength = 2;
         this.m_dirtyJSON = false;
         this.m_dirtyStored = false;
+        this.m_count = 0;
+        this.m_size = 0;
+        Arrays.fill(this.m_priorityCounts, 0);
     }
 
     /**
-     * Saves the messages to persistent storage. This method only performs the
-     * save if new messages have been added or one of the messages changed.
+     * Saves the messages to persistent storage. This method only appends the
+     * messages that have not been stored before and any id changes to stored
+     * messages.
      */
     protected void save() {
         // only store if at least one messages stored state is dirty
         if (this.m_dirtyStored) {
             try {
-                // create stream and data stream
-                FileOutputStream fileStream = IQUSDK.instance().application()
-                        .openFileOutput(FILE_NAME, Context.MODE_PRIVATE);
-                DataOutputStream dataStream = new DataOutputStream(fileStream);
-                // store version
-                dataStream.writeInt(FILE_VERSION);
-                // get count
-                int count = this.getCount();
-                dataStream.writeInt(count);
-                // store the messages
+                IQUMessageJournal journal = IQUSDK.instance().journal();
+                // append the messages that have not been stored yet
+                int count = 0;
                 for (IQUMessage message = this.m_first; message != null; message = message
                         .getNext()) {
-                    message.save(dataStream);
+                    if (message.getSequence() == 0) {
+                        journal.append(message);
+                        count++;
+                    }
                 }
-                dataStream.close();
-                fileStream.close();
+                journal.flush();
                 // no longer dirty
                 this.m_dirtyStored = false;
                 // debug info
@@ -255,53 +559,15 @@ class IQUMessageQueue {
      * Loads the messages from persistent storage.
      */
     protected void load() {
-        try {
-            // get reference to file
-            File file = IQUSDK.instance().application().getFileStreamPath(FILE_NAME);
-            // only load from it if the file does actually exists
-            if (file.exists()) {
-                FileInputStream fileStream = new FileInputStream(file);
-                DataInputStream dataStream = new DataInputStream(fileStream);
-                // get version
-                int version = dataStream.readInt();
-                // only process if the file version is correct
-                if (version == FILE_VERSION) {
-                    // clear current list (but don't destroy the file)
-                    this.clear(false);
-                    // get number of stored message
-                    int messageCount = dataStream.readInt();
-                    // create and load messages
-                    for (int count = messageCount; count > 0; count--) {
-                        IQUMessage message = new IQUMessage();
-                        message.load(dataStream);
-                        this.add(message);
-                    }
-                    // debug info
-                    if (IQUSDK.DEBUG) {
-                        IQUSDK.instance().addLog("[Queue] loaded " + messageCount + " message(s)");
-                    }
-                } else {
-                    // clear current list and destroy file (since it is no
-                    // longer supported)
-                    this.clear(true);
-                    // debug info
-                    if (IQUSDK.DEBUG) {
-                        IQUSDK.instance().addLog(
-                                "[Queue] no messages were loaded, file uses unsupported version ("
-                                        + version + "), current version is " + FILE_VERSION);
-                    }
-                }
-                dataStream.close();
-                fileStream.close();
-                // no need to save the just loaded messages
-                this.m_dirtyStored = false;
-            }
-        } catch (Exception error) {
-            if (IQUSDK.DEBUG) {
-                IQUSDK.instance().addLog(
-                        "[Queue][Error] While loading: " + error.getClass().getName() + ": "
-                                + error.getMessage());
-            }
+        // clear current list (but don't remove stored messages)
+        this.clear(false);
+        // get messages from journal
+        int count = IQUSDK.instance().journal().load(this);
+        // no need to save the just loaded messages
+        this.m_dirtyStored = false;
+        // debug info
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog("[Queue] loaded " + count + " message(s)");
         }
     }
 
@@ -311,28 +577,157 @@ class IQUMessageQueue {
      * @return JSON formatted string.
      */
     protected String toJSONString() {
-        // rebuild string if there is none or one or more messages became dirty.
-        if ((this.m_cachedJSONString == null) || this.m_dirtyJSON) {
-            this.m_cachedJSONString = this.buildJSONString();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream((int) Math.min(
+                this.getJSONLength(), Integer.MAX_VALUE));
+        try {
+            this.writeJSON(stream);
+        } catch (IOException ignore) {
+        }
+        return new String(stream.toByteArray(), IQUDataBuffer.UTF8);
+    }
+
+    /**
+     * Writes the queue as UTF-8 encoded JSON formatted string to a stream. The
+     * cached data of every message is written, so only changed messages are
+     * converted. It creates the following format:
+     * <p>
+     * [ {...},{...},... ]
+     * </p>
+     * <p>
+     * or the shared identifiers format described with the class.
+     * </p>
+     * 
+     * @param aStream
+     *            Stream to write to
+     * 
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected void writeJSON(OutputStream aStream) throws IOException {
+        if (this.m_sharedIdentifiers) {
+            for (byte[] fragment : this.getSharedJSONFragments()) {
+                aStream.write(fragment);
+            }
+            return;
+        }
+        aStream.write('[');
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            if (message != this.m_first) {
+                aStream.write(',');
+            }
+            aStream.write(message.toJSONBytes());
+        }
+        aStream.write(']');
+    }
+
+    /**
+     * Returns the data written by {@link #writeJSON(OutputStream)} as list of
+     * fragments. The list refers to the cached data of the messages, so it
+     * stays valid if the queue changes afterwards. The arrays should not be
+     * modified.
+     * 
+     * @return UTF-8 encoded fragments
+     */
+    protected List<byte[]> getJSONFragments() {
+        if (this.m_sharedIdentifiers) {
+            return this.getSharedJSONFragments();
+        }
+        List<byte[]> result = new ArrayList<byte[]>(2 * this.m_count + 1);
+        result.add(JSON_START);
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            if (message != this.m_first) {
+                result.add(JSON_SEPARATOR);
+            }
+            result.add(message.toJSONBytes());
+        }
+        result.add(JSON_END);
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeJSON(OutputStream)} will
+     * write.
+     * 
+     * @return length of the UTF-8 encoded JSON formatted string
+     */
+    protected long getJSONLength() {
+        // determine again if one or more messages became dirty.
+        if (this.m_dirtyJSON) {
+            long length = 0;
+            if (this.m_sharedIdentifiers) {
+                for (byte[] fragment : this.getSharedJSONFragments()) {
+                    length += fragment.length;
+                }
+            } else {
+                // brackets and separators
+                length = this.m_count > 0 ? this.m_count + 1 : 2;
+                for (IQUMessage message = this.m_first; message != null; message = message
+                        .getNext()) {
+                    length += message.toJSONBytes().length;
+                }
+            }
+            this.m_cachedJSONLength = length;
             this.m_dirtyJSON = false;
         }
-        return this.m_cachedJSONString;
+        return this.m_cachedJSONLength;
+    }
+
+    /**
+     * Resolves the ids that were still empty when the messages were created,
+     * see {@link IQUIds#resolve(IQUIds)}. Messages sharing the same ids
+     * snapshot share the resolved snapshot.
+     * 
+     * @param aCurrent
+     *            Current ids snapshot of the SDK
+     */
+    protected void resolveIds(IQUIds aCurrent) {
+        IQUIds source = null;
+        IQUIds resolved = null;
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            IQUIds ids = message.getIds();
+            if (ids != source) {
+                source = ids;
+                resolved = ids.resolve(aCurrent);
+            }
+            if (message.setIds(resolved)) {
+                this.m_dirtyJSON = true;
+            }
+        }
     }
 
     /**
-     * Update an id within all the stored messages.
+     * Update an id within all messages without storing the update. This method
+     * is used by the journal while loading messages.
      * 
      * @param aType
      *            Id type to update value for.
      * @param aNewValue
      *            New value to use.
      */
-    protected void updateId(IQUIdType aType, String aNewValue) {
+    protected void updateStoredId(IQUIdType aType, String aNewValue) {
+        IQUIds source = null;
+        IQUIds updated = null;
         for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
-            message.updateId(aType, aNewValue);
+            IQUIds ids = message.getIds();
+            if (ids != source) {
+                source = ids;
+                updated = ids.update(aType, aNewValue);
+            }
+            message.setIds(updated);
         }
     }
 
+    /**
+     * Returns the ids of the last message, used to share the ids of messages
+     * that are loaded after each other.
+     * 
+     * @return ids snapshot or null if the queue is empty
+     */
+    protected IQUIds getLastIds() {
+        IQUMessage last = this.m_last;
+        return last == null ? null : last.getIds();
+    }
+
     /**
      * Checks if queue contains at least one message for a certain event type.
      * 
@@ -350,6 +745,33 @@ class IQUMessageQueue {
         return false;
     }
 
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * Returns if the ids are written once per distinct set of ids instead of
+     * with every message, see the class description.
+     * 
+     * @return current sharedIdentifiers property value
+     */
+    protected boolean getSharedIdentifiers() {
+        return this.m_sharedIdentifiers;
+    }
+
+    /**
+     * Sets the sharedIdentifiers property.
+     * 
+     * @param aValue
+     *            New value to use
+     */
+    protected void setSharedIdentifiers(boolean aValue) {
+        if (this.m_sharedIdentifiers != aValue) {
+            this.m_sharedIdentifiers = aValue;
+            this.m_dirtyJSON = true;
+        }
+    }
+
     //
     // EVENT HANDLERS
     //
@@ -371,26 +793,215 @@ class IQUMessageQueue {
     //
 
     /**
-     * Builds JSON formatted definition string from all messages in the queue.
-     * It creates the following format:
-     * <p>
-     * [ {...},{...},... ]
-     * </p>
+     * Returns the fragments of the shared identifiers format. The ids of
+     * every distinct set are encoded once; the event part of every message
+     * is cached by the message. The table is keyed by the JSON of all ids,
+     * not by the user key, so messages with different ids never share an
+     * entry.
+     * 
+     * @return UTF-8 encoded fragments
+     */
+    private List<byte[]> getSharedJSONFragments() {
+        Map<String, byte[]> prefixes = new HashMap<String, byte[]>();
+        List<byte[]> identifiers = new ArrayList<byte[]>();
+        List<byte[]> messages = new ArrayList<byte[]>(3 * this.m_count);
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            String ids = message.getIds().toJSONString();
+            byte[] prefix = prefixes.get(ids);
+            if (prefix == null) {
+                int index = prefixes.size();
+                if (index > 0) {
+                    identifiers.add(JSON_SEPARATOR);
+                }
+                identifiers.add(ids.getBytes(IQUDataBuffer.UTF8));
+                prefix = ("{\"identifiers\":" + index + ",\"event\":")
+                        .getBytes(IQUDataBuffer.UTF8);
+                prefixes.put(ids, prefix);
+            }
+            if (message != this.m_first) {
+                messages.add(JSON_SEPARATOR);
+            }
+            messages.add(prefix);
+            messages.add(message.toEventJSONBytes());
+        }
+        List<byte[]> result = new ArrayList<byte[]>(identifiers.size() + messages.size() + 3);
+        result.add(SHARED_START);
+        result.addAll(identifiers);
+        result.add(SHARED_MESSAGES);
+        result.addAll(messages);
+        result.add(SHARED_END);
+        return result;
+    }
+
+    /**
+     * Logs an error that occurred while moving messages to another journal.
+     * 
+     * @param anError
+     *            Error that occurred
+     */
+    private void logMoveError(Exception anError) {
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog(
+                    "[Queue][Error] While moving: " + anError.getClass().getName() + ": "
+                            + anError.getMessage());
+        }
+    }
+
+    /**
+     * Removes a message from the chain and destroys it.
+     * 
+     * @param aPrevious
+     *            Message before aMessage or null if aMessage is the first
+     * @param aMessage
+     *            Message to remove
+     * @param aStoreRemoval
+     *            When <code>true</code> and the message has been stored, mark
+     *            it as removed in the journal.
+     */
+    private void remove(IQUMessage aPrevious, IQUMessage aMessage, boolean aStoreRemoval) {
+        IQUMessage next = aMessage.getNext();
+        if (aPrevious == null) {
+            this.m_first = next;
+        } else {
+            aPrevious.setNext(next);
+        }
+        if (this.m_last == aMessage) {
+            this.m_last = aPrevious;
+        }
+        this.m_count--;
+        this.m_size -= aMessage.getSize();
+        this.m_priorityCounts[aMessage.getPriority()]--;
+        this.m_dirtyJSON = true;
+        if (aStoreRemoval && (aMessage.getSequence() > 0)) {
+            try {
+                IQUSDK.instance().journal().appendRemove(aMessage.getSequence());
+                this.m_dirtyStored = true;
+            } catch (Exception error) {
+                if (IQUSDK.DEBUG) {
+                    IQUSDK.instance().addLog(
+                            "[Queue][Error] While removing: " + error.getClass().getName() + ": "
+                                    + error.getMessage());
+                }
+            }
+        }
+        aMessage.destroy();
+    }
+
+    /**
+     * Checks if the number or size of the messages exceeds a limit.
+     * 
+     * @param aMaxCount
+     *            Maximum number of messages
+     * @param aMaxSize
+     *            Maximum estimated size of all messages
+     * 
+     * @return <code>true</code> if one of the limits is exceeded
+     */
+    private boolean exceeds(int aMaxCount, long aMaxSize) {
+        return (this.m_count > aMaxCount) || (this.m_size > aMaxSize);
+    }
+
+    /**
+     * Removes the oldest messages of a priority until the queue is within the
+     * limits or there are no more messages of that priority.
+     * 
+     * @param aPriority
+     *            One of the PRIORITY_ constants or -1 to remove messages of
+     *            any priority
+     * @param aMaxCount
+     *            Maximum number of messages
+     * @param aMaxSize
+     *            Maximum estimated size of all messages
+     * 
+     * @return number of messages removed
+     */
+    private int evictOldest(int aPriority, int aMaxCount, long aMaxSize) {
+        int result = 0;
+        IQUMessage previous = null;
+        IQUMessage message = this.m_first;
+        while ((message != null) && this.exceeds(aMaxCount, aMaxSize)
+                && ((aPriority < 0) || (this.m_priorityCounts[aPriority] > 0))) {
+            IQUMessage next = message.getNext();
+            if ((aPriority < 0) || (message.getPriority() == aPriority)) {
+                this.remove(previous, message, true);
+                result++;
+            } else {
+                previous = message;
+            }
+            message = next;
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the longest run of messages from the start of the queue that is
+     * within the limits and removes all messages after it.
+     * 
+     * @param aMaxCount
+     *            Maximum number of messages
+     * @param aMaxSize
+     *            Maximum estimated size of all messages
      * 
-     * @return JSON formatted definition string.
+     * @return number of messages removed
      */
-    private String buildJSONString() {
-        StringBuilder result = new StringBuilder();
-        result.append('[');
-        boolean notEmpty = false;
+    private int evictNewest(int aMaxCount, long aMaxSize) {
+        IQUMessage keep = null;
+        int count = 0;
+        long size = 0;
         for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
-            if (notEmpty) {
-                result.append(',');
+            if ((count >= aMaxCount) || (size + message.getSize() > aMaxSize)) {
+                break;
+            }
+            count++;
+            size += message.getSize();
+            keep = message;
+        }
+        int result = 0;
+        IQUMessage message = keep == null ? this.m_first : keep.getNext();
+        while (message != null) {
+            IQUMessage next = message.getNext();
+            this.remove(keep, message, true);
+            result++;
+            message = next;
+        }
+        return result;
+    }
+
+    /**
+     * Moves the priority count of a message moved to another queue.
+     * 
+     * @param aQueue
+     *            Queue the message is moved to
+     * @param aMessage
+     *            Moved message
+     */
+    private void movePriority(IQUMessageQueue aQueue, IQUMessage aMessage) {
+        int priority = aMessage.getPriority();
+        this.m_priorityCounts[priority]--;
+        aQueue.m_priorityCounts[priority]++;
+    }
+
+    /**
+     * Marks the stored messages in this queue as sent, so they are no longer
+     * loaded from the journal. Segments no longer needed are removed.
+     */
+    private void acknowledge() {
+        long sequence = 0;
+        for (IQUMessage message = this.m_first; message != null; message = message.getNext()) {
+            sequence = Math.max(sequence, message.getSequence());
+        }
+        if (sequence > 0) {
+            try {
+                IQUMessageJournal journal = IQUSDK.instance().journal();
+                journal.acknowledge(sequence);
+                journal.compact();
+            } catch (Exception error) {
+                if (IQUSDK.DEBUG) {
+                    IQUSDK.instance().addLog(
+                            "[Queue][Error] While acknowledging: " + error.getClass().getName()
+                                    + ": " + error.getMessage());
+                }
             }
-            result.append(message.toJSONString());
-            notEmpty = true;
         }
-        result.append(']');
-        return result.toString();
     }
 }
@@ -0,0 +1,533 @@
+package com.iqu.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * IQUMessageRing stores serialized messages in a memory mapped ring file. It
+ * is used instead of keeping every pending message as IQUMessage instance in
+ * memory; only the batch that is being sent is converted back to IQUMessage
+ * instances.
+ * <p>
+ * The file starts with a header containing the capacity and the head and tail
+ * positions. The positions only increase, the position in the file is
+ * determined by taking the position modulo the capacity. Records consist of
+ * the payload length, a CRC-32C checksum and the payload (using the same
+ * message format as the journal).
+ * </p>
+ * <p>
+ * Records that were sent while records before them were not, are flagged as
+ * sent (the highest bit of the payload length) and skipped when reading. They
+ * are removed once the records before them are removed.
+ * </p>
+ */
+class IQUMessageRing {
+    //
+    // PRIVATE CONST
+    //
+
+    /**
+     * Name of the ring file.
+     */
+    private static final String FILE_NAME = "IQUSDK_messages.ring";
+
+    /**
+     * Version of the ring file. This value should be increased whenever the
+     * format changes.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Size of the header.
+     */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * Header offsets.
+     */
+    private static final int HEADER_VERSION = 0;
+    private static final int HEADER_CAPACITY = 4;
+    private static final int HEADER_HEAD = 8;
+    private static final int HEADER_TAIL = 16;
+    private static final int HEADER_COUNT = 24;
+
+    /**
+     * Size of the record header: payload length and checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Flag in the payload length of records that have been sent.
+     */
+    private static final int SENT_FLAG = 0x80000000;
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * The file the buffer is mapped to.
+     */
+    private final RandomAccessFile m_file;
+
+    /**
+     * The mapped region.
+     */
+    private final MappedByteBuffer m_buffer;
+
+    /**
+     * Size of the data area.
+     */
+    private final int m_capacity;
+
+    /**
+     * Position of the first record.
+     */
+    private long m_head;
+
+    /**
+     * Position after the last record.
+     */
+    private long m_tail;
+
+    /**
+     * Number of records.
+     */
+    private int m_count;
+
+    /**
+     * Buffer used to serialize a message.
+     */
+    private final IQUDataBuffer m_writeBuffer;
+
+    /**
+     * Buffer used to read a record.
+     */
+    private final IQUDataBuffer m_readBuffer;
+
+    /**
+     * Bytes of the record being read.
+     */
+    private byte[] m_readData;
+
+    /**
+     * Bytes of a record header.
+     */
+    private final byte[] m_header;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Opens or creates the ring file. An existing file keeps its capacity
+     * while it contains messages.
+     *
+     * @param aDirectory
+     *            Folder to store the ring file in.
+     * @param aCapacity
+     *            Size in bytes of the data area for a new file.
+     *
+     * @throws IOException
+     *             (if the file can not be opened or mapped)
+     */
+    protected IQUMessageRing(File aDirectory, int aCapacity) throws IOException {
+        this.m_file = new RandomAccessFile(new File(aDirectory, FILE_NAME), "rw");
+        int capacity = aCapacity;
+        boolean valid = false;
+        if (this.m_file.length() >= HEADER_SIZE) {
+            this.m_file.seek(HEADER_VERSION);
+            if (this.m_file.readInt() == FILE_VERSION) {
+                int storedCapacity = this.m_file.readInt();
+                this.m_file.seek(HEADER_COUNT);
+                // keep stored messages, else use new capacity
+                if ((this.m_file.readInt() > 0) && (storedCapacity > 0)
+                        && (this.m_file.length() >= HEADER_SIZE + storedCapacity)) {
+                    capacity = storedCapacity;
+                    valid = true;
+                }
+            }
+        }
+        this.m_capacity = capacity;
+        this.m_buffer = this.m_file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + capacity);
+        if (valid) {
+            this.m_head = this.m_buffer.getLong(HEADER_HEAD);
+            this.m_tail = this.m_buffer.getLong(HEADER_TAIL);
+            this.m_count = this.m_buffer.getInt(HEADER_COUNT);
+        } else {
+            this.m_buffer.putInt(HEADER_VERSION, FILE_VERSION);
+            this.m_buffer.putInt(HEADER_CAPACITY, capacity);
+            this.m_head = 0;
+            this.m_tail = 0;
+            this.m_count = 0;
+            this.writeHeader();
+        }
+        this.m_writeBuffer = new IQUDataBuffer(1024);
+        this.m_readBuffer = new IQUDataBuffer(16);
+        this.m_readData = new byte[1024];
+        this.m_header = new byte[RECORD_HEADER_SIZE];
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Writes changes to the file and closes it.
+     */
+    protected synchronized void destroy() {
+        this.flush();
+        try {
+            this.m_file.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Writes the changes to the mapped region to the file.
+     */
+    protected synchronized void flush() {
+        this.m_buffer.force();
+    }
+
+    /**
+     * Adds a message to the end of the ring.
+     *
+     * @param aMessage
+     *            Message to add
+     *
+     * @return <code>true</code> if the message was added, <code>false</code>
+     *         if there is not enough free space.
+     */
+    protected synchronized boolean offer(IQUMessage aMessage) {
+        IQUDataBuffer buffer = this.m_writeBuffer;
+        buffer.reset();
+        aMessage.save(buffer);
+        int size = buffer.getSize();
+        if (this.m_tail - this.m_head + RECORD_HEADER_SIZE + size > this.m_capacity) {
+            return false;
+        }
+        byte[] header = this.m_header;
+        IQUDataBuffer.putInt(header, 0, size);
+        IQUDataBuffer.putInt(header, 4, IQUCrc32C.calculate(buffer.getData(), 0, size));
+        this.put(this.m_tail, header, 0, RECORD_HEADER_SIZE);
+        this.put(this.m_tail + RECORD_HEADER_SIZE, buffer.getData(), 0, size);
+        this.m_tail += RECORD_HEADER_SIZE + size;
+        this.m_count++;
+        this.writeHeader();
+        return true;
+    }
+
+    /**
+     * Reads messages from the ring without removing them. Call
+     * {@link #acknowledge(int, int)} once the messages have been sent.
+     * <p>
+     * Records failing the checksum test are removed from the ring. Records
+     * flagged as sent are skipped.
+     * </p>
+     *
+     * @param aQueue
+     *            Queue to add the messages to
+     * @param aSkip
+     *            Number of records to skip at the start of the ring (the
+     *            records read by previous calls that have not been
+     *            acknowledged yet)
+     * @param aMaxCount
+     *            Maximum number of messages to read
+     * @param aMaxSize
+     *            Maximum length of the UTF-8 encoded JSON formatted messages;
+     *            at least one message is read
+     * @param aRecords
+     *            Receives for every message read the number of records
+     *            before it (counted from aSkip), so the records of the first
+     *            messages can be acknowledged; must have room for aMaxCount
+     *            values.
+     *
+     * @return number of records read (including invalid and sent records),
+     *         pass this value to {@link #acknowledge(int, int)}.
+     */
+    protected synchronized int peek(IQUMessageQueue aQueue, int aSkip, int aMaxCount,
+            long aMaxSize, int[] aRecords) {
+        long position = this.m_head;
+        int index = 0;
+        for (; (index < aSkip) && (index < this.m_count); index++) {
+            position += RECORD_HEADER_SIZE + (this.readHeader(position) & ~SENT_FLAG);
+        }
+        int result = 0;
+        int read = 0;
+        long length = 1;
+        while ((read < aMaxCount) && (index + result < this.m_count) && (length < aMaxSize)) {
+            int header = this.readHeader(position);
+            if ((header & SENT_FLAG) != 0) {
+                position += RECORD_HEADER_SIZE + (header & ~SENT_FLAG);
+                result++;
+                continue;
+            }
+            int size = this.readRecord(position);
+            if (size < 0) {
+                // corrupt data, drop the rest of the ring
+                this.dropFrom(position, index + result);
+                break;
+            }
+            try {
+                IQUMessage message = new IQUMessage();
+                this.m_readBuffer.wrap(this.m_readData, 0, size);
+                message.load(this.m_readBuffer, aQueue.getLastIds());
+                long messageLength = message.toJSONBytes().length + 1;
+                if ((read > 0) && (length + messageLength > aMaxSize)) {
+                    message.destroy();
+                    break;
+                }
+                length += messageLength;
+                aQueue.add(message);
+                aRecords[read] = result;
+                read++;
+            } catch (IOException error) {
+                if (IQUSDK.DEBUG) {
+                    IQUSDK.instance().addLog("[Ring] skipped invalid message");
+                }
+            }
+            position += RECORD_HEADER_SIZE + size;
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Marks records as sent. Sent records at the start of the ring are
+     * removed; other records are flagged and removed once the records before
+     * them have been sent.
+     * <p>
+     * Removing records changes the index of the remaining records. When
+     * acknowledging several ranges read with {@link #peek}, acknowledge the
+     * last range first.
+     * </p>
+     *
+     * @param aFirst
+     *            Index of the first record
+     * @param aCount
+     *            Number of records
+     */
+    protected synchronized void acknowledge(int aFirst, int aCount) {
+        if (aFirst > 0) {
+            long position = this.m_head;
+            int index = 0;
+            for (; (index < aFirst) && (index < this.m_count); index++) {
+                position += RECORD_HEADER_SIZE + (this.readHeader(position) & ~SENT_FLAG);
+            }
+            byte[] header = this.m_header;
+            for (; (index < aFirst + aCount) && (index < this.m_count); index++) {
+                int size = this.readHeader(position) & ~SENT_FLAG;
+                IQUDataBuffer.putInt(header, 0, size | SENT_FLAG);
+                this.put(position, header, 0, 4);
+                position += RECORD_HEADER_SIZE + size;
+            }
+            return;
+        }
+        // remove the records and any sent records after them
+        int count = 0;
+        while (count < this.m_count) {
+            int header = this.readHeader(this.m_head);
+            if ((count >= aCount) && ((header & SENT_FLAG) == 0)) {
+                break;
+            }
+            this.m_head += RECORD_HEADER_SIZE + (header & ~SENT_FLAG);
+            this.m_count--;
+            count++;
+        }
+        if (this.m_count == 0) {
+            this.m_head = 0;
+            this.m_tail = 0;
+        }
+        this.writeHeader();
+    }
+
+    /**
+     * Removes all messages.
+     */
+    protected synchronized void clear() {
+        this.m_head = 0;
+        this.m_tail = 0;
+        this.m_count = 0;
+        this.writeHeader();
+    }
+
+    /**
+     * Checks if the ring contains at least one message for a certain event
+     * type.
+     *
+     * @param aType
+     *            Event type to check
+     *
+     * @return <code>true</code> if there is at least one message,
+     *         <code>false</code> if not.
+     */
+    protected synchronized boolean hasEventType(String aType) {
+        long position = this.m_head;
+        for (int index = 0; index < this.m_count; index++) {
+            int header = this.readHeader(position);
+            if ((header & SENT_FLAG) != 0) {
+                position += RECORD_HEADER_SIZE + (header & ~SENT_FLAG);
+                continue;
+            }
+            int size = this.readRecord(position);
+            if (size < 0) {
+                return false;
+            }
+            try {
+                this.m_readBuffer.wrap(this.m_readData, 0, size);
+                // skip event
+                this.m_readBuffer.readString();
+                if (this.m_readBuffer.readString().equals(aType)) {
+                    return true;
+                }
+            } catch (IOException ignore) {
+            }
+            position += RECORD_HEADER_SIZE + size;
+        }
+        return false;
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * Checks if the ring is empty.
+     *
+     * @return <code>true</code> when there are no messages in the ring.
+     */
+    protected synchronized boolean isEmpty() {
+        return this.m_count == 0;
+    }
+
+    /**
+     * Returns the number of messages in the ring.
+     *
+     * @return number of messages
+     */
+    protected synchronized int getCount() {
+        return this.m_count;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Reads the payload length of a record, including the
+     * {@link #SENT_FLAG}.
+     *
+     * @param aPosition
+     *            Position of the record
+     *
+     * @return payload length and flag
+     */
+    private int readHeader(long aPosition) {
+        byte[] header = this.m_header;
+        this.get(aPosition, header, 0, 4);
+        return IQUDataBuffer.getInt(header, 0);
+    }
+
+    /**
+     * Reads a record into m_readData and validates it.
+     *
+     * @param aPosition
+     *            Position of the record
+     *
+     * @return size of the payload or -1 if the record is invalid.
+     */
+    private int readRecord(long aPosition) {
+        byte[] header = this.m_header;
+        this.get(aPosition, header, 0, RECORD_HEADER_SIZE);
+        int size = IQUDataBuffer.getInt(header, 0);
+        if ((size <= 0) || (aPosition + RECORD_HEADER_SIZE + size > this.m_tail)) {
+            return -1;
+        }
+        if (this.m_readData.length < size) {
+            this.m_readData = new byte[Math.max(size, this.m_readData.length * 2)];
+        }
+        this.get(aPosition + RECORD_HEADER_SIZE, this.m_readData, 0, size);
+        if (IQUCrc32C.calculate(this.m_readData, 0, size) != IQUDataBuffer.getInt(header, 4)) {
+            return -1;
+        }
+        return size;
+    }
+
+    /**
+     * Removes all records starting at a certain position.
+     *
+     * @param aPosition
+     *            Position of first record to remove
+     * @param anIndex
+     *            Index of the record
+     */
+    private void dropFrom(long aPosition, int anIndex) {
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog(
+                    "[Ring] dropped " + (this.m_count - anIndex) + " message(s) with invalid data");
+        }
+        this.m_tail = aPosition;
+        this.m_count = anIndex;
+        this.writeHeader();
+    }
+
+    /**
+     * Copies bytes to the data area, wrapping around at the end.
+     *
+     * @param aPosition
+     *            Ring position
+     * @param aData
+     *            Data to copy
+     * @param anOffset
+     *            Offset of first byte
+     * @param aLength
+     *            Number of bytes
+     */
+    private void put(long aPosition, byte[] aData, int anOffset, int aLength) {
+        int start = (int) (aPosition % this.m_capacity);
+        int first = Math.min(aLength, this.m_capacity - start);
+        this.m_buffer.position(HEADER_SIZE + start);
+        this.m_buffer.put(aData, anOffset, first);
+        if (first < aLength) {
+            this.m_buffer.position(HEADER_SIZE);
+            this.m_buffer.put(aData, anOffset + first, aLength - first);
+        }
+    }
+
+    /**
+     * Copies bytes from the data area, wrapping around at the end.
+     *
+     * @param aPosition
+     *            Ring position
+     * @param aData
+     *            Array to copy to
+     * @param anOffset
+     *            Offset of first byte
+     * @param aLength
+     *            Number of bytes
+     */
+    private void get(long aPosition, byte[] aData, int anOffset, int aLength) {
+        int start = (int) (aPosition % this.m_capacity);
+        int first = Math.min(aLength, this.m_capacity - start);
+        this.m_buffer.position(HEADER_SIZE + start);
+        this.m_buffer.get(aData, anOffset, first);
+        if (first < aLength) {
+            this.m_buffer.position(HEADER_SIZE);
+            this.m_buffer.get(aData, anOffset + first, aLength - first);
+        }
+    }
+
+    /**
+     * Stores head, tail and count in the header.
+     */
+    private void writeHeader() {
+        this.m_buffer.putLong(HEADER_HEAD, this.m_head);
+        this.m_buffer.putLong(HEADER_TAIL, this.m_tail);
+        this.m_buffer.putInt(HEADER_COUNT, this.m_count);
+    }
+}
@@ -1,21 +1,21 @@
 package com.iqu.sdk;
 
 import android.annotation.SuppressLint;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 import org.json.JSONObject;
 
 /**
- * IQUNetwork takes care of sending data to the IQU server.
+ * IQUNetwork takes care of sending data to the IQU server. It signs the
+ * requests and uses an {@link IQUTransport} implementation to send them.
  */
 @SuppressWarnings("unused")
 class IQUNetwork {
@@ -33,6 +33,38 @@ class IQUNetwork {
      */
     protected static final String ERROR = "RESPONSE_ERROR";
 
+    /**
+     * Result of a request: the server accepted the request.
+     */
+    protected static final int RESULT_OK = 0;
+
+    /**
+     * Result of a request: the server could not be reached (no response).
+     */
+    protected static final int RESULT_CONNECT_ERROR = 1;
+
+    /**
+     * Result of a request: the server rejected the request (4xx).
+     */
+    protected static final int RESULT_CLIENT_ERROR = 2;
+
+    /**
+     * Result of a request: the server failed (5xx) or returned an invalid
+     * response.
+     */
+    protected static final int RESULT_SERVER_ERROR = 3;
+
+    /**
+     * Result of a request: the request was cancelled.
+     */
+    protected static final int RESULT_CANCELLED = 4;
+
+    /**
+     * Result of a request: the server rejected the content of the request
+     * (400, 413 or 422); sending the same messages again will fail again.
+     */
+    protected static final int RESULT_REJECTED = 5;
+
     //
     // PRIVATE CONSTS
     //
@@ -40,35 +72,36 @@ class IQUNetwork {
     /**
      * URL to service (must end with /)
      */
-    private static final String URL = "https://tracker.iqugroup.com/v3/";
+    protected static final String URL = "https://tracker.iqugroup.com/v3/";
 
     /**
-     * Used to convert data to hexadecimal format
+     * Size of the buffer used by the compressing stream.
      */
-    private static final char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
+    private static final int COMPRESSION_BUFFER_SIZE = 8192;
 
     //
     // PRIVATE TYPES
     //
 
     /**
-     * The class used by doSend to communicate between threads.
+     * GZIP output stream that compresses with a certain level.
      */
-    private class SendInformation {
-        /**
-         * Connection to send data
-         */
-        public HttpsURLConnection connection;
-
-        /**
-         * Indicates if sending finished (successful or not)
-         */
-        public boolean finished;
-
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
         /**
-         * Contains error that was generated if sending failed.
+         * Creates a new instance.
+         *
+         * @param aStream
+         *            Stream to write the compressed data to
+         * @param aLevel
+         *            Compression level (1 - 9)
+         *
+         * @throws IOException
+         *             (if the header could not be written)
          */
-        public Exception error;
+        public LevelGZIPOutputStream(OutputStream aStream, int aLevel) throws IOException {
+            super(aStream, COMPRESSION_BUFFER_SIZE);
+            this.def.setLevel(aLevel);
+        }
     }
 
     //
@@ -90,11 +123,26 @@ class IQUNetwork {
      */
     private final String m_secretKey;
 
+    /**
+     * Generates the HMAC hash, null if the secret key is invalid.
+     */
+    private final IQUSigner m_signer;
+
     /**
      * When true stop sending.
      */
     private volatile boolean m_cancel;
 
+    /**
+     * Used to wake up a simulated request when sending is cancelled.
+     */
+    private final Object m_cancelSemaphore;
+
+    /**
+     * See property definition.
+     */
+    private final IQUTransport m_transport;
+
     //
     // PROTECTED METHODS
     //
@@ -106,22 +154,29 @@ class IQUNetwork {
      *            API key
      * @param aSecretKey
      *            Secret key
+     * @param aServiceUrl
+     *            URL of the service (must end with /)
+     * @param aTransportType
+     *            Transport to use
      */
-    protected IQUNetwork(String anApiKey, String aSecretKey) {
-        // for now just copy, defined just in case the future supports multiple
-        // urls
-        this.m_serviceUrl = URL;
+    protected IQUNetwork(String anApiKey, String aSecretKey, String aServiceUrl,
+            IQUTransportType aTransportType) {
+        this.m_serviceUrl = aServiceUrl;
         // copy key and secret remove spaces, carriage returns and line feeds
         this.m_apiKey = anApiKey.replace("\n", "").replace("\r", "").replace(" ", "");
         this.m_secretKey = aSecretKey.replace("\n", "").replace("\r", "").replace(" ", "");
+        this.m_signer = this.createSigner(this.m_secretKey);
         // don't cancel sending
         this.m_cancel = false;
+        this.m_cancelSemaphore = new Object();
+        this.m_transport = this.createTransport(aTransportType);
     }
 
     /**
      * Cleans up references and resources. 
      */
     protected void destroy() {
+        this.m_transport.destroy();
     }
 
     /**
@@ -130,44 +185,235 @@ class IQUNetwork {
      * @param aMessages
      *            MessageQueue to send
      * 
-     * @return <code>true</code> if sending was successful, <code>false</code>
-     *         if not.
+     * @return one of the RESULT_ constants
      */
-    @SuppressLint("DefaultLocale")
-    protected boolean send(IQUMessageQueue aMessages) {
-        JSONObject result = this.sendSigned(this.m_serviceUrl, aMessages.toJSONString());
-        return !result.has(ERROR)
-          && result.optString("status", "failed").toLowerCase().equals("ok");
+    protected int send(IQUMessageQueue aMessages) {
+        // the format can not change between signing and sending
+        aMessages.setSharedIdentifiers(IQUSDK.instance().getSharedIdentifiers());
+        return this.processResult(this.sendSigned(this.m_serviceUrl, aMessages));
+    }
+
+    /**
+     * Starts sending one or more messages to the server without waiting for
+     * the response. Use {@link #finishSend(Future)} to get the result.
+     * 
+     * @param aMessages
+     *            MessageQueue to send
+     * 
+     * @return future for the response or null if the transport can not send
+     *         asynchronously or a test mode is active; use
+     *         {@link #send(IQUMessageQueue)} in that case.
+     */
+    protected Future<JSONObject> sendAsync(IQUMessageQueue aMessages) {
+        if (IQUSDK.instance().getTestMode() != IQUTestMode.NONE) {
+            return null;
+        }
+        aMessages.setSharedIdentifiers(IQUSDK.instance().getSharedIdentifiers());
+        String url = this.m_serviceUrl + "?api_key=" + this.m_apiKey + "&signature="
+                + this.generateHMACSHA512(aMessages);
+        try {
+            Future<JSONObject> result = this.m_transport.sendAsync(url, aMessages,
+                    IQUSDK.instance().getSendTimeout());
+            if ((result != null) && IQUSDK.DEBUG) {
+                IQUSDK.instance().addLog("[Network] [Sending] " + url);
+                if (IQUSDK.instance().getLogEnabled()) {
+                    IQUSDK.instance().addLog("[Network] [Content] "
+                            + aMessages.toJSONString().replace("\n", ""));
+                }
+            }
+            return result;
+        } catch (Exception error) {
+            if (IQUSDK.DEBUG) {
+                IQUSDK.instance().addLog("[Network] [Error] " + error.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a request started with {@link #sendAsync(IQUMessageQueue)}.
+     * 
+     * @param aFuture
+     *            Future returned by sendAsync
+     * 
+     * @return one of the RESULT_ constants
+     */
+    protected int finishSend(Future<JSONObject> aFuture) {
+        JSONObject result;
+        try {
+            result = this.await(aFuture, IQUSDK.instance().getSendTimeout());
+        } catch (Exception error) {
+            result = this.createErrorResult(error);
+        }
+        return this.processResult(result);
     }
 
     /**
-     * Tries to send a small message to the server to see if it is reachable.
+     * Waits for the result of a request.
+     * 
+     * @param aFuture
+     *            Future for the result
+     * @param aTimeout
+     *            Maximum time in milliseconds
      * 
-     * @return <code>true</code> when message could be sent, <code>false</code>
-     *         if not.
+     * @return JSONObject instance with result returned from server
+     * 
+     * @throws Exception
+     *             (if sending failed, timed out or was cancelled)
      */
-    protected boolean checkServer() {
-        JSONObject result = this.send(this.m_serviceUrl + "?ping", null);
-        return !result.has(ERROR);
+    protected JSONObject await(Future<JSONObject> aFuture, long aTimeout) throws Exception {
+        try {
+            return aFuture.get(aTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException error) {
+            aFuture.cancel(true);
+            throw new Exception("Time out sending (max time allowed = "
+                    + String.valueOf(aTimeout) + "ms");
+        } catch (CancellationException error) {
+            throw new Exception("Sending was cancelled from other thread.");
+        } catch (ExecutionException error) {
+            Throwable cause = error.getCause();
+            throw cause instanceof Exception ? (Exception) cause : error;
+        }
     }
 
     /**
-     * Cancels current IO (if any). The cancellation will take max 10
-     * milliseconds.
+     * Cancels current IO (if any) and any IO started before the next call to
+     * {@link #resetCancel()}. The IO is aborted immediately.
      */
     protected void cancelSend() {
-        this.m_cancel = true;
+        synchronized (this.m_cancelSemaphore) {
+            this.m_cancel = true;
+            this.m_cancelSemaphore.notifyAll();
+        }
+        this.m_transport.cancel();
+    }
+
+    /**
+     * Allows IO again after a call to {@link #cancelSend()}.
+     */
+    protected void resetCancel() {
+        this.m_cancel = false;
     }
     
+    /**
+     * Checks if POST content should be sent compressed.
+     *
+     * @param aPostContent
+     *            Messages to POST or null if there is no POST content.
+     *
+     * @return <code>true</code> if compression is enabled and the content is
+     *         at least compressionThreshold bytes.
+     */
+    protected boolean isCompressed(IQUMessageQueue aPostContent) {
+        IQUSDK sdk = IQUSDK.instance();
+        return (aPostContent != null) && sdk.getCompressionEnabled()
+                && (aPostContent.getJSONLength() >= sdk.getCompressionThreshold());
+    }
+
+    /**
+     * Writes POST content gzip compressed to a stream. The content is
+     * compressed while it is written; the stream is closed afterwards.
+     *
+     * @param aPostContent
+     *            Messages to write
+     * @param aStream
+     *            Stream to write the compressed data to
+     *
+     * @throws IOException
+     *             (if writing fails)
+     */
+    protected void writeCompressed(IQUMessageQueue aPostContent, OutputStream aStream)
+            throws IOException {
+        GZIPOutputStream stream = new LevelGZIPOutputStream(aStream,
+                IQUSDK.instance().getCompressionLevel());
+        try {
+            aPostContent.writeJSON(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Creates the result of a request and tries to parse the response as JSON
+     * data. The method will add two custom fields to the result; see CODE and
+     * ERROR constants.
+     * <p>
+     * If a parse error occurs, the result will contain a code with value -1
+     * </p>
+     * 
+     * @param aCode
+     *            Response code
+     * @param aContent
+     *            Response body or null if there is none
+     * @param aHeaders
+     *            Response headers
+     * 
+     * @return JSONObject instance
+     * 
+     * @throws Exception
+     *             An exception can be thrown while creating the result.
+     */
+    protected JSONObject createResult(int aCode, String aContent,
+            Map<String, List<String>> aHeaders) throws Exception {
+        // result to return
+        JSONObject result;
+        int code = aCode;
+        // replace 100 with 200
+        if (code == 100) {
+            code = 200;
+        }
+        // no content?
+        if ((aContent == null) || (aContent.length() == 0)) {
+            result = new JSONObject();
+        } else {
+            try {
+                result = new JSONObject(aContent);
+            } catch (Exception error) {
+                result = new JSONObject();
+                code = -1;
+                result.put(ERROR, "invalid JSON format");
+            }
+        }
+        result.put(CODE, code);
+        if (code > 399) {
+            result.put(ERROR, "server response code " + code);
+        }
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog("[Network] [Response Headers] " + aHeaders.toString());
+            IQUSDK.instance().addLog("[Network] [Response Body] " + aContent);
+            IQUSDK.instance().addLog("[Network] [Code] " + String.valueOf(code));
+        }
+        return result;
+    }
+
     //
     // PROTECTED PROPERTIES
     //
 
     /**
-     * Returns cancelled state. This property is true when the last call to
-     * sendQueue or one of the send methods was cancelled by cancelSend. A new
-     * call to sendQueue or one of the send methods will reset this property to
-     * false.
+     * Returns the part of the requests that used an existing connection.
+     * 
+     * @return value between 0.0 (every request opened a new connection) and
+     *         1.0 (all requests used an existing connection) or -1.0 if the
+     *         transport can not determine it
+     */
+    protected double getConnectionReuseRate() {
+        return this.m_transport.getConnectionReuseRate();
+    }
+
+    /**
+     * Returns the transport used to send requests.
+     * 
+     * @return transport instance
+     */
+    protected IQUTransport getTransport() {
+        return this.m_transport;
+    }
+
+    /**
+     * Returns cancelled state. This property is true after a call to
+     * {@link #cancelSend()} until {@link #resetCancel()} is called. While the
+     * property is true, all requests fail immediately.
      * <p>
      * Default value is false.
      * </p>
@@ -183,97 +429,132 @@ class IQUNetwork {
     //
 
     /**
-     * Convert byte array to hex string.
-     * <p>
-     * Source:
-     * http://stackoverflow.com/questions/9655181/convert-from-byte-array
-     * -to-hex-string-in-java
-     * </p>
+     * Determines the result of a request, a response without ok status is
+     * treated as a server failure.
      * 
-     * @param aBytes
-     *            Byte array to convert
+     * @param aResult
+     *            Result as returned by {@link #send(String, IQUMessageQueue)}
      * 
-     * @return Hexadecimal representation of data
+     * @return one of the RESULT_ constants
      */
-    private String bytesToHex(byte[] aBytes) {
-        char[] hexChars = new char[aBytes.length * 2];
-        for (int j = 0; j < aBytes.length; j++) {
-            int v = aBytes[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+    @SuppressLint("DefaultLocale")
+    private int processResult(JSONObject aResult) {
+        if (!aResult.has(ERROR)
+          && !aResult.optString("status", "failed").toLowerCase().equals("ok")) {
+            return RESULT_SERVER_ERROR;
         }
-        return new String(hexChars);
+        return this.classifyResult(aResult);
     }
 
     /**
-     * Convert ASCII text to byte array.
+     * Creates a result that only contains an error.
      * 
-     * @param aText
-     *            Text to convert.
+     * @param anError
+     *            Error that occurred during IO
      * 
-     * @return byte array
+     * @return JSONObject instance with field ERROR
      */
-    private byte[] getBytes(String aText) {
+    @SuppressWarnings("EmptyCatchBlock")
+    private JSONObject createErrorResult(Exception anError) {
+        JSONObject result = new JSONObject();
         try {
-            return aText.getBytes("US-ASCII");
+            result.put(ERROR, anError.getMessage());
+        } catch (Exception putError) {
         }
-        catch(Exception error) {
-            return null;
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog("[Network] [Error] " + anError.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Determines the result of a request from the processed response.
+     * 
+     * @param aResult
+     *            Result as returned by {@link #send(String, IQUMessageQueue)}
+     * 
+     * @return one of the RESULT_ constants
+     */
+    private int classifyResult(JSONObject aResult) {
+        if (!aResult.has(ERROR)) {
+            return RESULT_OK;
+        }
+        if (this.m_cancel) {
+            return RESULT_CANCELLED;
+        }
+        if (!aResult.has(CODE)) {
+            return RESULT_CONNECT_ERROR;
+        }
+        int code = aResult.optInt(CODE, -1);
+        if ((code == 400) || (code == 413) || (code == 422)) {
+            return RESULT_REJECTED;
+        }
+        if ((code >= 400) && (code < 500)) {
+            return RESULT_CLIENT_ERROR;
+        }
+        return RESULT_SERVER_ERROR;
+    }
+
+    /**
+     * Creates the transport for a certain type.
+     * 
+     * @param aType
+     *            Transport type
+     * 
+     * @return transport instance
+     */
+    private IQUTransport createTransport(IQUTransportType aType) {
+        switch (aType) {
+            case LOOPBACK:
+                return new IQULoopbackTransport(this);
+            case AUTOMATIC:
+            case HTTP_CLIENT:
+                if (IQUHttpClientTransport.isAvailable()) {
+                    return new IQUHttpClientTransport(this);
+                }
+                break;
+            default:
+                break;
         }
+        return new IQUUrlConnectionTransport(this);
     }
 
     /**
-     * Convert the contents of an input stream to a string, the method will also
-     * close the input stream once all data is obtained.
+     * Creates the signer for a secret key.
      * 
-     * @param anInputStream
-     *            Input stream to get data from
+     * @param aSecret
+     *            API secret
      * 
-     * @return input stream as text or null if an IOException occurred.
+     * @return signer or null if the key could not be initialized
      */
-    @SuppressWarnings("ReturnInsideFinallyBlock")
-    private String streamToString(InputStream anInputStream) {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(anInputStream));
-        StringBuilder builder = new StringBuilder();
-        String line;
+    private IQUSigner createSigner(String aSecret) {
         try {
-            while ((line = reader.readLine()) != null) {
-                builder.append(line).append("\n");
+            return new IQUSigner(aSecret);
+        } catch (Exception error) {
+            if (IQUSDK.DEBUG) {
+                IQUSDK.instance().addLog(
+                  "[Network] error initializing mac: "
+                    + error.getClass().getName()
+                    + ": " + error.getMessage()
+                );
             }
-        } catch (IOException e) {
             return null;
-        } finally {
-            try {
-                anInputStream.close();
-            } catch (IOException e) {
-                return null;
-            }
         }
-        return builder.toString();
     }
 
     /**
      * Generate a HMAC512 hash.
      * 
-     * @param aSecret
-     *            API secret
      * @param aPostContent
-     *            the content of the message.
+     *            the messages to send.
      * 
      * @return The HMAC512 hash as hexadecimal String.
      */
-    private String generateHMACSHA512(String aSecret, String aPostContent) {
+    private String generateHMACSHA512(IQUMessageQueue aPostContent) {
         try {
-            // create HMAC hash and return its hexadecimal representation
-            Mac hmac;
-            hmac = Mac.getInstance("HmacSHA512");
-            byte[] secret = this.getBytes(aSecret);
-            if (secret == null) {
-              return "";
+            if (this.m_signer != null) {
+                return this.m_signer.sign(aPostContent);
             }
-            SecretKeySpec secretKey = new SecretKeySpec(secret, "HmacSHA512");
-            hmac.init(secretKey);
-            return this.bytesToHex(hmac.doFinal(this.getBytes(aPostContent)));
         } catch (Exception error) {
             if (IQUSDK.DEBUG) {
                 IQUSDK.instance().addLog(
@@ -293,10 +574,13 @@ class IQUNetwork {
     private void sleepThread() {
         try {
             // sleep 1000ms (unless cancel is activated)
-            for (int count = 0; count < 100; count++) {
-                if (this.m_cancel)
-                    break;
-                Thread.sleep(10);
+            long endTime = System.currentTimeMillis() + 1000;
+            synchronized (this.m_cancelSemaphore) {
+                long delay = endTime - System.currentTimeMillis();
+                while (!this.m_cancel && (delay > 0)) {
+                    this.m_cancelSemaphore.wait(delay);
+                    delay = endTime - System.currentTimeMillis();
+                }
             }
         } catch (Exception error) {
         }
@@ -313,7 +597,7 @@ class IQUNetwork {
      * 
      * @return JSONObject with only an error field.
      */
-    private JSONObject simulateOffline(String anUrl, String aPostContent) {
+    private JSONObject simulateOffline(String anUrl, IQUMessageQueue aPostContent) {
         if (IQUSDK.DEBUG) {
             IQUSDK.instance().addLog("[Network] simulating offline state (server not available)");
         }
@@ -339,7 +623,7 @@ class IQUNetwork {
      *            Content to post
      * @return JSONObject instance with simulated result data.
      */
-    private JSONObject simulateServer(String anUrl, String aPostContent) {
+    private JSONObject simulateServer(String anUrl, IQUMessageQueue aPostContent) {
         if (IQUSDK.DEBUG) {
             IQUSDK.instance().addLog("[Network] simulating successful server response");
         }
@@ -357,174 +641,6 @@ class IQUNetwork {
 
     }
 
-    /**
-     * Creates a HttpsURLConnection instance from url.
-     * 
-     * @param anUrl
-     *            URL to use
-     * 
-     * @return HttpsURLConnection instance
-     */
-    @SuppressLint("TrulyRandom")
-	private HttpsURLConnection createConnection(String anUrl) throws Exception {
-        // get URL and connection
-        URL url = new URL(anUrl);
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-     // Create the SSL connection
-        SSLContext sc;
-        sc = SSLContext.getInstance("TLS");
-        sc.init(null, null, new java.security.SecureRandom());
-        conn.setSSLSocketFactory(sc.getSocketFactory());
-        return conn;
-    }
-
-    /**
-     * Initializes a connection to send data to the server.
-     * 
-     * @param aConnection
-     *            Connection to initialize.
-     * 
-     * @param aPostContent
-     *            POST content using JSON formatting or null if there is no post
-     *            content.
-     * 
-     * @throws Exception
-     *             An exception is thrown if an error occurred while
-     *             initializing the instance.
-     */
-    private void initConnection(HttpsURLConnection aConnection, String aPostContent)
-            throws Exception {
-        // initialize connection
-        aConnection.setDoInput(true);
-        aConnection.setRequestProperty("Content-Type", "application/json");
-        aConnection.setRequestProperty("SdkVersion", IQUSDK.SDK_VERSION);
-        aConnection.setRequestProperty("SdkType", "Android");
-        if (aPostContent == null) {
-            aConnection.setDoOutput(false);
-            aConnection.setRequestMethod("GET");
-        } else {
-            aConnection.setDoOutput(true);
-            aConnection.setRequestMethod("POST");
-            OutputStream stream = aConnection.getOutputStream();
-            stream.write(aPostContent.getBytes("UTF-8"));
-            stream.close();
-        }
-    }
-
-    /**
-     * Sends the data over the connection. The method will wait until the
-     * sending has finished or a time-out has occurred or the network was
-     * ordered to cancel any IO from another thread.
-     * 
-     * @param aConnection
-     *            Connection that has been set up to send data.
-     * 
-     * @throws Exception
-     *             An exception is thrown if the sending of data failed in some
-     *             way.
-     */
-    @SuppressWarnings("UnusedAssignment")
-    private void sendData(HttpsURLConnection aConnection) throws Exception {
-        // create structure shared between send thread and this thread
-        final SendInformation information = new SendInformation();
-        information.connection = aConnection;
-        information.error = null;
-        information.finished = false;
-        // determine system time the sending of the data must be finished before
-        long endTime = System.currentTimeMillis() + IQUSDK.instance().getSendTimeout();
-        // send data using a separate thread
-        Thread sendThread = new Thread() {
-            @Override
-            public void run() {
-                try {
-                    information.connection.connect();
-                } catch (Exception error) {
-                    information.error = error;
-                }
-                information.finished = true;
-            }
-        };
-        sendThread.start();
-        // wait for io to finish or timeout or getting cancelled from
-        // another thread
-        while (!information.finished && (System.currentTimeMillis() < endTime) && !this.m_cancel) {
-            Thread.sleep(10);
-        }
-        // clear reference to thread
-        sendThread = null;
-        // sending was cancelled?
-        if (this.m_cancel) {
-            throw new Exception("Sending was cancelled from other thread.");
-        }
-        // not finished, i.e. timeout error occurred?
-        else if (!information.finished) {
-            // yes, throw exception
-            throw new Exception("Time out sending (max time allowed = "
-                    + String.valueOf(IQUSDK.instance().getSendTimeout()) + "ms");
-        }
-        // exception occurred while trying to send data?
-        else if (information.error != null) {
-            // re-throw it
-            throw information.error;
-        }
-    }
-
-    /**
-     * Processes the response and tries to parse the response as JSON data. The
-     * method will add two custom fields to the result; see CODE and ERROR
-     * constants.
-     * <p>
-     * If a parse error occurs, the result will contain a code with value -1
-     * </p>
-     * 
-     * @param aConnection
-     *            Connection to process response off
-     * 
-     * @return JSONObject instance
-     * 
-     * @throws Exception
-     *             An exception can be thrown while obtaining response
-     *             information.
-     */
-    private JSONObject processResponse(HttpsURLConnection aConnection) throws Exception {
-        // get response
-        int code = aConnection.getResponseCode();
-        // result to return
-        JSONObject result;
-        // replace 100 with 200
-        if (code == 100) {
-            code = 200;
-        }
-        // get stream (depending on response code)
-        InputStream stream = code >= 400 ? aConnection.getErrorStream() : aConnection
-                .getInputStream();
-        // get text
-        String resultContent = this.streamToString(stream);
-        // no content?
-        if ((resultContent == null) || (resultContent.length() == 0)) {
-            result = new JSONObject();
-        } else {
-            try {
-                result = new JSONObject(resultContent);
-            } catch (Exception error) {
-                result = new JSONObject();
-                code = -1;
-                result.put(ERROR, "invalid JSON format");
-            }
-        }
-        result.put(CODE, code);
-        if (code > 399) {
-            result.put(ERROR, "server response code " + code);
-        }
-        if (IQUSDK.DEBUG) {
-            IQUSDK.instance().addLog("[Network] [Response Headers] "
-                    + aConnection.getHeaderFields().toString());
-            IQUSDK.instance().addLog("[Network] [Response Body] " + resultContent);
-            IQUSDK.instance().addLog("[Network] [Code] " + String.valueOf(code));
-        }
-        return result;
-    }
-
     /**
      * Send a signed message to the server. A HMAC256 hash is generated from the
      * post content.
@@ -533,12 +649,12 @@ class IQUNetwork {
      *            URL to send to.
      * 
      * @param aPostContent
-     *            Content posted to the server URL.
+     *            Messages posted to the server URL.
      * 
      * @return JSONObject result from server.
      */
-    private JSONObject sendSigned(String anUrl, String aPostContent) {
-        String signature = this.generateHMACSHA512(this.m_secretKey, aPostContent);
+    private JSONObject sendSigned(String anUrl, IQUMessageQueue aPostContent) {
+        String signature = this.generateHMACSHA512(aPostContent);
         return this.send(anUrl + "?api_key=" + this.m_apiKey + "&signature=" + signature,
                 aPostContent);
     }
@@ -556,21 +672,20 @@ class IQUNetwork {
      * @param anUrl
      *            URL to send request to
      * @param aPostContent
-     *            POST content to send or null if there is no POST content.
+     *            Messages to POST or null if there is no POST content.
      * 
      * @return JSONObject instance with result returned from server.
      */
-    @SuppressWarnings({"incomplete-switch", "EmptyCatchBlock"})
-    private JSONObject send(String anUrl, String aPostContent) {
+    @SuppressWarnings("incomplete-switch")
+    private JSONObject send(String anUrl, IQUMessageQueue aPostContent) {
         // debug
         if (IQUSDK.DEBUG) {
             IQUSDK.instance().addLog("[Network] [Sending] " + anUrl);
-            if (aPostContent != null) {
-                IQUSDK.instance().addLog("[Network] [Content] " + aPostContent.replace("\n", ""));
+            if ((aPostContent != null) && IQUSDK.instance().getLogEnabled()) {
+                IQUSDK.instance().addLog("[Network] [Content] "
+                        + aPostContent.toJSONString().replace("\n", ""));
             }
         }
-        // reset cancel
-        this.m_cancel = false;
         // handle test mode
         switch (IQUSDK.instance().getTestMode()) {
             case SIMULATE_OFFLINE:
@@ -578,33 +693,12 @@ class IQUNetwork {
             case SIMULATE_SERVER:
                 return this.simulateServer(anUrl, aPostContent);
         }
-        // contains result
-        JSONObject result = null;
         try {
-            // create connection
-            HttpsURLConnection connection = this.createConnection(anUrl);
-            try {
-                // initialize connection
-                this.initConnection(connection, aPostContent);
-                // send data
-                this.sendData(connection);
-                // get result
-                result = this.processResponse(connection);
-            } finally {
-                // make sure connection is disconnected
-                connection.disconnect();
-            }
+            return this.m_transport.send(anUrl, aPostContent,
+                    IQUSDK.instance().getSendTimeout());
         } catch (Exception error) {
             // error occurred during IO, use new result and store only error
-            result = new JSONObject();
-            try {
-                result.put(ERROR, error.getMessage());
-            } catch (Exception putError) {
-            }
-            if (IQUSDK.DEBUG) {
-                IQUSDK.instance().addLog("[Network] [Error] " + error.getMessage());
-            }
+            return this.createErrorResult(error);
         }
-        return result;
     }
 }
@@ -0,0 +1,82 @@
+package com.iqu.sdk;
+
+/**
+ * Possible ways the SDK handles new messages once the maximum number or size
+ * of pending messages has been reached.
+ */
+public enum IQUOverflowPolicy {
+    /**
+     * Remove the oldest pending messages to make room for new messages.
+     */
+    DROP_OLDEST(0),
+
+    /**
+     * Remove pending messages with the lowest priority first (heartbeats
+     * before other events, revenue events last). Messages with the same
+     * priority are removed oldest first.
+     */
+    DROP_LOWEST_PRIORITY(1),
+
+    /**
+     * Keep the pending messages and ignore new messages.
+     */
+    REJECT_NEW(2);
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Store value
+     */
+    private final int m_value;
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param aValue
+     *            integer overflow policy value
+     */
+    IQUOverflowPolicy(int aValue) {
+        this.m_value = aValue;
+    }
+
+    //
+    // PUBLIC PROPERTIES
+    //
+
+    /**
+     * Returns the overflow policy as integer.
+     * 
+     * @return overflow policy as integer
+     */
+    public int getValue() {
+        return this.m_value;
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    /**
+     * Find a specific overflow policy for an integer value.
+     * 
+     * @param anOverflowPolicy
+     *            integer value to find overflow policy for
+     * 
+     * @return the found overflow policy or null if none could be found for
+     *         anOverflowPolicy
+     */
+    public static IQUOverflowPolicy find(int anOverflowPolicy) {
+        for (IQUOverflowPolicy overflowPolicy : IQUOverflowPolicy.values()) {
+            if (overflowPolicy.getValue() == anOverflowPolicy) {
+                return overflowPolicy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,185 @@
+package com.iqu.sdk;
+
+import java.util.Random;
+
+/**
+ * IQURetryScheduler determines when requests may be sent to the server. It
+ * implements a circuit breaker: after a failed request the circuit opens and
+ * no requests are sent until the next attempt time. Then one request is
+ * allowed (half-open); if it succeeds the circuit closes, else it opens again
+ * with a longer delay.
+ * <p>
+ * The delay grows exponentially with the number of consecutive failures and
+ * is limited by a maximum. A random delay between 0 and that value is used
+ * (full jitter), so devices that lost the server at the same time do not
+ * retry at the same time. Server errors and client errors use a longer delay
+ * than connection errors.
+ * </p>
+ */
+class IQURetryScheduler {
+    //
+    // PRIVATE CONSTS
+    //
+
+    /**
+     * Factor applied to the base interval after a server error (5xx or
+     * invalid response).
+     */
+    private static final int SERVER_ERROR_FACTOR = 2;
+
+    /**
+     * Factor applied to the base interval after a client error (4xx).
+     */
+    private static final int CLIENT_ERROR_FACTOR = 8;
+
+    /**
+     * Minimum delay in milliseconds before the next attempt.
+     */
+    private static final long MIN_DELAY = 100;
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * See property definition.
+     */
+    private IQUCircuitState m_state;
+
+    /**
+     * See property definition.
+     */
+    private long m_nextAttemptTime;
+
+    /**
+     * See property definition.
+     */
+    private int m_failureCount;
+
+    /**
+     * Used to generate the jitter.
+     */
+    private final Random m_random;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new instance with a closed circuit.
+     */
+    protected IQURetryScheduler() {
+        this.m_state = IQUCircuitState.CLOSED;
+        this.m_nextAttemptTime = 0;
+        this.m_failureCount = 0;
+        this.m_random = new Random();
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Checks if a request may be sent. If the circuit is open and the next
+     * attempt time has passed, the circuit becomes half-open.
+     * 
+     * @param aTime
+     *            Current time
+     * 
+     * @return <code>true</code> if a request may be sent.
+     */
+    protected synchronized boolean isAttemptAllowed(long aTime) {
+        if ((this.m_state == IQUCircuitState.OPEN) && (aTime >= this.m_nextAttemptTime)) {
+            this.m_state = IQUCircuitState.HALF_OPEN;
+            if (IQUSDK.DEBUG) {
+                IQUSDK.instance().addLog("[Retry] circuit half-open");
+            }
+        }
+        return this.m_state != IQUCircuitState.OPEN;
+    }
+
+    /**
+     * Closes the circuit after a successful request.
+     */
+    protected synchronized void recordSuccess() {
+        if (IQUSDK.DEBUG && (this.m_state != IQUCircuitState.CLOSED)) {
+            IQUSDK.instance().addLog("[Retry] circuit closed");
+        }
+        this.m_state = IQUCircuitState.CLOSED;
+        this.m_failureCount = 0;
+        this.m_nextAttemptTime = 0;
+    }
+
+    /**
+     * Opens the circuit after a failed request and determines the next
+     * attempt time.
+     * 
+     * @param aResult
+     *            One of the IQUNetwork.RESULT_ constants (except RESULT_OK)
+     * @param aTime
+     *            Current time
+     * @param aBaseInterval
+     *            Delay in milliseconds after the first connection error
+     * @param aMaxInterval
+     *            Maximum delay in milliseconds
+     */
+    protected synchronized void recordFailure(int aResult, long aTime, long aBaseInterval,
+            long aMaxInterval) {
+        long interval = aBaseInterval;
+        switch (aResult) {
+            case IQUNetwork.RESULT_CLIENT_ERROR:
+            case IQUNetwork.RESULT_REJECTED:
+                interval *= CLIENT_ERROR_FACTOR;
+                break;
+            case IQUNetwork.RESULT_SERVER_ERROR:
+                interval *= SERVER_ERROR_FACTOR;
+                break;
+            default:
+                break;
+        }
+        // double the interval for every consecutive failure
+        int shift = Math.min(this.m_failureCount, 30);
+        long limit = interval > (aMaxInterval >> shift) ? aMaxInterval : interval << shift;
+        long delay = Math.max(MIN_DELAY, (long) (this.m_random.nextDouble() * limit));
+        this.m_failureCount++;
+        this.m_state = IQUCircuitState.OPEN;
+        this.m_nextAttemptTime = aTime + delay;
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog(
+                    "[Retry] circuit open after " + this.m_failureCount
+                            + " failure(s), next attempt in " + delay + "ms");
+        }
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * Returns the current circuit state.
+     * 
+     * @return circuit state
+     */
+    protected synchronized IQUCircuitState getState() {
+        return this.m_state;
+    }
+
+    /**
+     * Returns the time a request may be sent again.
+     * 
+     * @return time in milliseconds since 1 January 1970 UTC or 0 if the
+     *         circuit is closed
+     */
+    protected synchronized long getNextAttemptTime() {
+        return this.m_nextAttemptTime;
+    }
+
+    /**
+     * Returns the number of consecutive failed requests.
+     * 
+     * @return number of failures
+     */
+    protected synchronized int getFailureCount() {
+        return this.m_failureCount;
+    }
+}
@@ -1,6 +1,5 @@
 package com.iqu.sdk;
 
-import android.annotation.SuppressLint;
 import android.app.Application;
 import android.content.Context;
 import android.content.res.Configuration;
@@ -11,11 +10,20 @@ import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
+import java.io.File;
 import java.lang.reflect.Method;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -56,7 +64,38 @@ import org.json.JSONObject;
  * The IQU SDK uses a separate thread to send messages to the server (to prevent
  * blocking the main thread). This means that there might be a small delay
  * before messages are actually sent to the server. The maximum delay is
- * determined by the {@link #getUpdateInterval() updateInterval} property.
+ * determined by the {@link #getMaxBatchAge() maxBatchAge} property.
+ * Messages are sent right away once there are
+ * {@link #getMaxBatchMessages() maxBatchMessages} messages or
+ * {@link #getMaxBatchBytes() maxBatchBytes} bytes waiting or when an event of
+ * one of the {@link #getUrgentEventTypes() urgentEventTypes} is tracked. The
+ * trackXXXXX methods only store their arguments in a preallocated slot; the
+ * thread builds the JSON messages from them. The
+ * thread only becomes active when there are messages to send, a heartbeat
+ * message is due or the server has to be checked again.
+ * </p>
+ * <p>
+ * Large numbers of pending messages are sent in multiple requests, every
+ * request contains at most maxBatchMessages messages and maxBatchBytes
+ * bytes. Up to {@link #getMaxInFlightBatches() maxInFlightBatches} requests
+ * are sent at the same time. Unless
+ * {@link #getPreserveUserOrder() preserveUserOrder} is turned off, requests
+ * sent at the same time never contain messages of the same user (same SDK
+ * id); on a device that means one request at a time. Setting
+ * maxInFlightBatches above 1 turns preserveUserOrder off unless it has been
+ * set explicitly.
+ * </p>
+ * <p>
+ * Turn on {@link #getCompressionEnabled() compressionEnabled} to send
+ * requests gzip compressed; requests smaller than
+ * {@link #getCompressionThreshold() compressionThreshold} bytes are sent
+ * uncompressed. {@link #getCompressionLevel() compressionLevel} selects
+ * between speed (1) and size (9).
+ * </p>
+ * <p>
+ * Turn on {@link #getSharedIdentifiers() sharedIdentifiers} to send the ids
+ * once per request instead of with every message, if the server supports
+ * this format.
  * </p>
  * <p>
  * If the SDK fails to send a message to the IQU server, messages are queued and
@@ -106,6 +145,11 @@ import org.json.JSONObject;
  * <li>
  * {@link #getServerAvailable()} to get information if the messages were sent
  * successfully or not.</li>
+ * <li>{@link #getDeadLetterCount()} returns the number of messages the server
+ * rejected; these messages are moved to a separate dead-letter store. The
+ * store is limited to {@link #getMaxDeadLetterSize() maxDeadLetterSize} bytes
+ * (the oldest messages are removed first) and emptied by
+ * {@link #clearDeadLetters()}.</li>
  * </ul>
  * <h3>Testing</h3>
  * <p>
@@ -129,15 +173,22 @@ import org.json.JSONObject;
  * The IQU SDK offers several properties to adjust the various timings:
  * </p>
  * <ul>
- * <li>{@link #getUpdateInterval()} property determines the time between the
- * internal update calls.</li>
+ * <li>{@link #getMaxBatchAge()} property determines the maximum time a
+ * message waits before it is sent.</li>
  * <li>{@link #getSendTimeout()} property determines the maximum time sending a
  * message to the server may take.</li>
- * <li>{@link #getCheckServerInterval()} property determines the time between
- * checks for server availability. If sending of data fails, the update thread
- * will wait the time, as set by this property, before trying to send the data
- * again.</li>
+ * <li>{@link #getCheckServerInterval()} property determines the time the
+ * update thread waits after the first failed attempt to send data. Every next
+ * failure doubles the time, up to the time set by
+ * {@link #getMaxRetryInterval()}; a random part of that time is used so not
+ * every device retries at the same moment.</li>
+ * <li>{@link #getMaxRetryInterval()} property determines the maximum time
+ * between checks for server availability.</li>
  * </ul>
+ * <p>
+ * {@link #getCircuitState()} and {@link #getNextAttemptTime()} return if and
+ * when the server is checked again.
+ * </p>
  */
 @SuppressWarnings("unused")
 public class IQUSDK {
@@ -160,6 +211,19 @@ public class IQUSDK {
    */
   protected final static boolean DEBUG = true;
 
+  /**
+   * Event type values.
+   */
+  protected final static String EVENT_REVENUE = "revenue";
+  protected final static String EVENT_HEARTBEAT = "heartbeat";
+  protected final static String EVENT_ITEM_PURCHASE = "item_purchase";
+  protected final static String EVENT_TUTORIAL = "tutorial";
+  protected final static String EVENT_MILESTONE = "milestone";
+  protected final static String EVENT_MARKETING = "marketing";
+  protected final static String EVENT_USER_ATTRIBUTE = "user_attribute";
+  protected final static String EVENT_COUNTRY = "country";
+  protected final static String EVENT_PLATFORM = "platform";
+
   //
   // PRIVATE CONSTS
   //
@@ -170,9 +234,68 @@ public class IQUSDK {
   private final static String SDK_ID_KEY = "IQU_SDK_ID";
 
   /**
-   * Initial update interval value
+   * Initial maximum time a message waits before it is sent
+   */
+  private final static long DEFAULT_MAX_BATCH_AGE = 200;
+
+  /**
+   * Initial maximum number of messages per request
+   */
+  private final static int DEFAULT_MAX_BATCH_MESSAGES = 500;
+
+  /**
+   * Initial maximum size in bytes of a request
+   */
+  private final static long DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+
+  /**
+   * Initial minimum size in bytes of a request before it is compressed
+   */
+  private final static long DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+  /**
+   * Initial compression level
+   */
+  private final static int DEFAULT_COMPRESSION_LEVEL = 6;
+
+  /**
+   * Initial maximum number of requests sent at the same time
+   */
+  private final static int DEFAULT_MAX_IN_FLIGHT_BATCHES = 1;
+
+  /**
+   * Maximum value allowed for the maxInFlightBatches property
+   */
+  private final static int MAX_IN_FLIGHT_BATCHES = 16;
+
+  /**
+   * Time in milliseconds an idle thread of the send executor is kept
+   */
+  private final static long SEND_THREAD_KEEP_ALIVE = 60000;
+
+  /**
+   * Maximum number of messages in the batch that checks if the server is
+   * available again (see {@link IQUCircuitState#HALF_OPEN})
+   */
+  private final static int PROBE_BATCH_MESSAGES = 10;
+
+  /**
+   * Maximum size in bytes of the batch that checks if the server is
+   * available again
+   */
+  private final static long PROBE_BATCH_BYTES = 16 * 1024;
+
+  /**
+   * Number of preallocated slots for tracked events that have not been
+   * converted to messages yet
+   */
+  private final static int EVENT_RING_CAPACITY = 1024;
+
+  /**
+   * Folder (within the files folder) of the journal storing the messages the
+   * server rejected
    */
-  private final static long DEFAULT_UPDATE_INTERVAL = 200;
+  private final static String DEAD_LETTER_DIRECTORY = "IQUSDK_deadletter";
 
   /**
    * Initial send timeout value
@@ -184,23 +307,42 @@ public class IQUSDK {
    */
   private final static long DEFAULT_CHECK_SERVER_INTERVAL = 2000;
 
+  /**
+   * Initial maximum interval in milliseconds between server available checks
+   */
+  private final static long DEFAULT_MAX_RETRY_INTERVAL = 300000;
+
+  /**
+   * Initial size in bytes of the ring file used with
+   * {@link IQUStorageMode#MAPPED_RING}
+   */
+  private final static int DEFAULT_RING_CAPACITY = 16 * 1024 * 1024;
+
+  /**
+   * Initial maximum number of pending messages
+   */
+  private final static int DEFAULT_MAX_PENDING_MESSAGES = 100000;
+
+  /**
+   * Initial maximum size of the pending messages
+   */
+  private final static long DEFAULT_MAX_PENDING_SIZE = 32 * 1024 * 1024;
+
+  /**
+   * Initial maximum size of the dead-letter store
+   */
+  private final static long DEFAULT_MAX_DEAD_LETTER_SIZE = 1024 * 1024;
+
   /**
    * Interval in milliseconds between heartbeat messages
    */
   private final static long HEARTBEAT_INTERVAL = 60000;
 
   /**
-   * Event type values.
+   * Maximum time in milliseconds pause() waits for the update thread to
+   * finish the current update call.
    */
-  private final static String EVENT_REVENUE = "revenue";
-  private final static String EVENT_HEARTBEAT = "heartbeat";
-  private final static String EVENT_ITEM_PURCHASE = "item_purchase";
-  private final static String EVENT_TUTORIAL = "tutorial";
-  private final static String EVENT_MILESTONE = "milestone";
-  private final static String EVENT_MARKETING = "marketing";
-  private final static String EVENT_USER_ATTRIBUTE = "user_attribute";
-  private final static String EVENT_COUNTRY = "country";
-  private final static String EVENT_PLATFORM = "platform";
+  private final static long MAX_PAUSE_WAIT = 500;
 
   //
   // PRIVATE VARIABLES
@@ -244,7 +386,58 @@ public class IQUSDK {
   /**
    * See property definition.
    */
-  private volatile long m_updateInterval;
+  private volatile long m_maxBatchAge;
+
+  /**
+   * See property definition.
+   */
+  private volatile int m_maxBatchMessages;
+
+  /**
+   * See property definition.
+   */
+  private volatile long m_maxBatchBytes;
+
+  /**
+   * See property definition.
+   */
+  private volatile String[] m_urgentEventTypes;
+
+  /**
+   * See property definition.
+   */
+  private volatile int m_maxInFlightBatches;
+
+  /**
+   * See property definition.
+   */
+  private volatile boolean m_preserveUserOrder;
+
+  /**
+   * True when preserveUserOrder has been set by the application; when false
+   * the value follows maxInFlightBatches.
+   */
+  private boolean m_preserveUserOrderSet;
+
+  /**
+   * See property definition.
+   */
+  private volatile boolean m_compressionEnabled;
+
+  /**
+   * See property definition.
+   */
+  private volatile long m_compressionThreshold;
+
+  /**
+   * See property definition.
+   */
+  private volatile int m_compressionLevel;
+
+  /**
+   * See property definition.
+   */
+  private volatile boolean m_sharedIdentifiers;
 
   /**
    * See property definition.
@@ -256,16 +449,77 @@ public class IQUSDK {
    */
   private volatile long m_checkServerInterval;
 
+  /**
+   * See property definition.
+   */
+  private volatile long m_maxRetryInterval;
+
   /**
    * See property definition.
    */
   private volatile boolean m_payable;
 
   /**
-   * Contains the various ids
+   * See property definition.
+   */
+  private volatile IQUStorageMode m_storageMode;
+
+  /**
+   * See property definition.
+   */
+  private volatile int m_ringCapacity;
+
+  /**
+   * See property definition.
+   */
+  private volatile int m_maxPendingMessages;
+
+  /**
+   * See property definition.
+   */
+  private volatile long m_maxPendingSize;
+
+  /**
+   * See property definition.
+   */
+  private volatile IQUOverflowPolicy m_overflowPolicy;
+
+  /**
+   * See property definition.
+   */
+  private volatile long m_evictedMessageCount;
+
+  /**
+   * See property definition.
+   */
+  private volatile long m_deadLetterCount;
+
+  /**
+   * See property definition.
+   */
+  private volatile long m_maxDeadLetterSize;
+
+  /**
+   * See property definition.
+   */
+  private volatile IQUTransportType m_transportType;
+
+  /**
+   * See property definition.
+   */
+  private volatile String m_serviceUrl;
+
+  /**
+   * Contains the current snapshot of the various ids
    */
   private volatile IQUIds m_ids;
 
+  /**
+   * Last ids snapshot whose changes were stored in the journal; the
+   * snapshots published after it contain the changes still to store.
+   */
+  private volatile IQUIds m_storedIds;
+
   /**
    * The paused state of the application
    */
@@ -281,11 +535,23 @@ public class IQUSDK {
    */
   private volatile Thread m_updateThread;
 
+  /**
+   * Sends batches while the update thread sends the first batch of the
+   * in-flight window, created when needed.
+   */
+  private volatile ExecutorService m_sendExecutor;
+
   /**
    * While this value is true the thread keeps running in an infinite loop
    */
   private volatile boolean m_updateThreadRunning;
 
+  /**
+   * Time the update thread has to call update() for new messages,
+   * Long.MAX_VALUE if there are none.
+   */
+  private volatile long m_updateTime;
+
   /**
    * Network part of IQU SDK.
    */
@@ -301,20 +567,48 @@ public class IQUSDK {
    */
   private volatile Application m_application;
 
+  /**
+   * Journal used to store messages in persistent storage.
+   */
+  private volatile IQUMessageJournal m_journal;
+
+  /**
+   * Journal storing the messages the server rejected (dead-letter store).
+   */
+  private volatile IQUMessageJournal m_deadLetters;
+
   /**
    * Contains messages that are pending to be sent.
    */
   private volatile IQUMessageQueue m_pendingMessages;
 
+  /**
+   * Collects new messages without locking; the messages are moved to
+   * m_pendingMessages by the update thread.
+   */
+  private volatile IQUMessageInbox m_inbox;
+
+  /**
+   * Stores the arguments of tracking calls until the update thread converts
+   * them to messages.
+   */
+  private volatile IQUEventRing m_events;
+
   /**
    * Contains messages currently being sent.
    */
   private volatile IQUMessageQueue m_sendingMessages;
 
   /**
-   * Time before a new server check is allowed.
+   * Stores pending messages when using {@link IQUStorageMode#MAPPED_RING}
+   * (null if not used).
+   */
+  private volatile IQUMessageRing m_ring;
+
+  /**
+   * Determines when the server is checked again after a failed request.
    */
-  private volatile long m_checkServerTime;
+  private final IQURetryScheduler m_retryScheduler;
 
   /**
    * Time of last heartbeat message.
@@ -329,7 +623,7 @@ public class IQUSDK {
   /**
    * Formats date and time values for use by the server.
    */
-  private final SimpleDateFormat m_dateFormat;
+  private final IQUTimestampFormat m_dateFormat;
 
   /**
    * Used to handle access to a properties from multiple threads.
@@ -347,12 +641,13 @@ public class IQUSDK {
   private final Object m_logSemaphore;
 
   /**
-   * Used to handle access to ids from multiple threads.
+   * Used to publish new ids snapshots from multiple threads.
    */
   private final Object m_idsSemaphore;
 
   /**
-   * Used to handle access to m_pauseUpdateThread
+   * Used to handle access to the update thread variables; the update thread
+   * waits on this object for the next update.
    */
   private final Object m_updateThreadVariableSemaphore;
 
@@ -363,37 +658,65 @@ public class IQUSDK {
   /**
    * Creates the instance and initializes all private variables.
    */
-  @SuppressLint("SimpleDateFormat")
   private IQUSDK() {
     this.m_analyticsEnabled = true;
     this.m_application = null;
     this.m_checkServerInterval = DEFAULT_CHECK_SERVER_INTERVAL;
-    this.m_checkServerTime = -DEFAULT_CHECK_SERVER_INTERVAL;
-    this.m_dateFormat = new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss");
-    this.m_dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    this.m_maxRetryInterval = DEFAULT_MAX_RETRY_INTERVAL;
+    this.m_retryScheduler = new IQURetryScheduler();
+    this.m_dateFormat = new IQUTimestampFormat();
     this.m_firstUpdateCall = true;
     this.m_heartbeatTime = -HEARTBEAT_INTERVAL;
+    // not the shared EMPTY instance, the published snapshots are linked to it
     this.m_ids = new IQUIds();
+    this.m_storedIds = null;
     this.m_idsSemaphore = new Object();
     this.m_initialized = false;
+    this.m_journal = null;
+    this.m_deadLetters = null;
     this.m_localStorage = null;
     this.m_log = "";
     this.m_logEnabled = false;
+    this.m_maxBatchAge = DEFAULT_MAX_BATCH_AGE;
+    this.m_maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    this.m_maxBatchMessages = DEFAULT_MAX_BATCH_MESSAGES;
+    this.m_maxInFlightBatches = DEFAULT_MAX_IN_FLIGHT_BATCHES;
+    this.m_maxPendingMessages = DEFAULT_MAX_PENDING_MESSAGES;
+    this.m_maxPendingSize = DEFAULT_MAX_PENDING_SIZE;
+    this.m_evictedMessageCount = 0;
+    this.m_deadLetterCount = 0;
+    this.m_maxDeadLetterSize = DEFAULT_MAX_DEAD_LETTER_SIZE;
     this.m_network = null;
+    this.m_overflowPolicy = IQUOverflowPolicy.DROP_LOWEST_PRIORITY;
     this.m_payable = true;
+    this.m_preserveUserOrder = true;
+    this.m_preserveUserOrderSet = false;
+    this.m_compressionEnabled = false;
+    this.m_compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    this.m_compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    this.m_sharedIdentifiers = false;
     this.m_pendingMessages = null;
+    this.m_inbox = null;
+    this.m_events = null;
     this.m_propertySemaphore = new Object();
     this.m_pendingMessagesSemaphore = new Object();
     this.m_logSemaphore = new Object();
+    this.m_ring = null;
+    this.m_ringCapacity = DEFAULT_RING_CAPACITY;
+    this.m_sendExecutor = null;
     this.m_sendingMessages = null;
     this.m_sendTimeout = DEFAULT_SEND_TIMEOUT;
     this.m_serverAvailable = true;
+    this.m_serviceUrl = IQUNetwork.URL;
+    this.m_storageMode = IQUStorageMode.JOURNAL;
     this.m_testMode = IQUTestMode.NONE;
-    this.m_updateInterval = DEFAULT_UPDATE_INTERVAL;
+    this.m_transportType = IQUTransportType.AUTOMATIC;
+    this.m_urgentEventTypes = new String[] { EVENT_REVENUE };
     this.m_updateThread = null;
     this.m_updateThreadBusy = false;
     this.m_updateThreadPaused = false;
     this.m_updateThreadRunning = true;
+    this.m_updateTime = Long.MAX_VALUE;
     this.m_updateThreadVariableSemaphore = new Object();
   }
 
@@ -491,23 +814,48 @@ public class IQUSDK {
    * Call this method from Activity's onPause; it pauses the internal update
    * thread and saves local storage to persistent storage.
    * <p>
-   * It will wait for the update thread to finish if a call to update is
+   * Any request being sent is cancelled. The method waits at most 500
+   * milliseconds for the update thread to finish if a call to update is
    * active.
    * </p>
    * While the update thread is paused no messages are sent to the server.
    */
   public void pause() {
     // pause the update thread
-    this.pauseUpdateThread();
+    boolean finished = this.pauseUpdateThread(MAX_PAUSE_WAIT);
     // save pending data to persistent storage
     if (this.m_localStorage != null) {
       this.m_localStorage.save();
     }
     // save pending messages to persistent storage (in case someone stops
-    // the app from outside).
-    if (this.m_pendingMessages != null) {
-      synchronized (this.m_pendingMessagesSemaphore) {
-        this.m_pendingMessages.save();
+    // the app from outside). If the update thread is still sending, it
+    // saves the pending messages once it is finished; that way messages are
+    // stored in the order they are sent.
+    if (finished) {
+      this.savePendingMessages();
+    }
+    if (this.m_ring != null) {
+      this.m_ring.flush();
+    }
+  }
+
+  /**
+   * Removes all messages from the dead-letter store. The deadLetterCount
+   * property is not changed.
+   */
+  public void clearDeadLetters() {
+    IQUMessageJournal deadLetters = this.m_deadLetters;
+    if (deadLetters != null) {
+      try {
+        deadLetters.clear();
+      }
+      catch (Exception error) {
+        if (DEBUG) {
+          this.addLog(
+            "[Queue][Error] While clearing dead letters: " + error.getClass()
+              .getName() + ": " + error.getMessage()
+          );
+        }
       }
     }
   }
@@ -552,9 +900,8 @@ public class IQUSDK {
    * @return stored id value or empty string if it not (yet) known.
    */
   public String getId(IQUIdType aType) {
-    synchronized (this.m_idsSemaphore) {
-      return this.m_ids.get(aType);
-    }
+    // the snapshot is immutable, no need to lock
+    return this.m_ids.get(aType);
   }
 
   /**
@@ -648,16 +995,12 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_REVENUE);
-      event.put("amount", anAmount);
-      event.put("currency", aCurrency);
-      if (aReward != null) {
-        event.put("reward", aReward);
-      }
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_REVENUE);
+    if (slot != null) {
+      slot.addNumber("amount", anAmount);
+      slot.addText("currency", aCurrency);
+      slot.addText("reward", aReward);
+      this.publishEvent(slot);
     }
   }
 
@@ -703,17 +1046,13 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_REVENUE);
-      event.put("amount", anAmount);
-      event.put("currency", aCurrency);
-      event.put("vc_amount", aVirtualCurrencyAmount);
-      if (aReward != null) {
-        event.put("reward", aReward);
-      }
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_REVENUE);
+    if (slot != null) {
+      slot.addNumber("amount", anAmount);
+      slot.addText("currency", aCurrency);
+      slot.addNumber("vc_amount", aVirtualCurrencyAmount);
+      slot.addText("reward", aReward);
+      this.publishEvent(slot);
     }
   }
 
@@ -754,12 +1093,10 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_ITEM_PURCHASE);
-      event.put("name", aName);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_ITEM_PURCHASE);
+    if (slot != null) {
+      slot.addText("name", aName);
+      this.publishEvent(slot);
     }
   }
 
@@ -780,13 +1117,11 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_ITEM_PURCHASE);
-      event.put("name", aName);
-      event.put("vc_amount", aVirtualCurrencyAmount);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_ITEM_PURCHASE);
+    if (slot != null) {
+      slot.addText("name", aName);
+      slot.addNumber("vc_amount", aVirtualCurrencyAmount);
+      this.publishEvent(slot);
     }
   }
 
@@ -805,12 +1140,10 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_TUTORIAL);
-      event.put("step", aStep);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_TUTORIAL);
+    if (slot != null) {
+      slot.addText("step", aStep);
+      this.publishEvent(slot);
     }
   }
 
@@ -832,13 +1165,11 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_MILESTONE);
-      event.put("name", aName);
-      event.put("value", aValue);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_MILESTONE);
+    if (slot != null) {
+      slot.addText("name", aName);
+      slot.addText("value", aValue);
+      this.publishEvent(slot);
     }
   }
 
@@ -869,16 +1200,14 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_MARKETING);
-      this.putField(event, "partner", aPartner);
-      this.putField(event, "campaign", aPartner);
-      this.putField(event, "ad", aPartner);
-      this.putField(event, "subid", aPartner);
-      this.putField(event, "subsubid", aPartner);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_MARKETING);
+    if (slot != null) {
+      this.putField(slot, "partner", aPartner);
+      this.putField(slot, "campaign", aCampaign);
+      this.putField(slot, "ad", anAd);
+      this.putField(slot, "subid", aSubId);
+      this.putField(slot, "subsubid", aSubSubId);
+      this.publishEvent(slot);
     }
   }
 
@@ -899,13 +1228,11 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_USER_ATTRIBUTE);
-      event.put("name", aName);
-      event.put("value", aValue);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_USER_ATTRIBUTE);
+    if (slot != null) {
+      slot.addText("name", aName);
+      slot.addText("value", aValue);
+      this.publishEvent(slot);
     }
   }
 
@@ -924,12 +1251,10 @@ public class IQUSDK {
     if (!this.getAnalyticsEnabled()) {
       return;
     }
-    try {
-      JSONObject event = this.createEvent(EVENT_COUNTRY);
-      event.put("value", aCountry);
-      this.addEvent(event);
-    }
-    catch (Exception ignored) {
+    IQUEventSlot slot = this.claimEvent(EVENT_COUNTRY);
+    if (slot != null) {
+      slot.addText("value", aCountry);
+      this.publishEvent(slot);
     }
   }
 
@@ -1021,22 +1346,51 @@ public class IQUSDK {
   }
 
   /**
-   * Returns the time in milliseconds to wait between update calls.
+   * Returns the maximum time in milliseconds a new message waits before it is
+   * sent.
+   *
+   * @return current maxBatchAge property value
+   *
+   * @deprecated use {@link #getMaxBatchAge()}
+   */
+  @Deprecated
+  public long getUpdateInterval() {
+    return this.getMaxBatchAge();
+  }
+
+  /**
+   * Changes the maximum time in milliseconds a new message waits before it
+   * is sent.
+   *
+   * @param aValue
+   *   New value to use (minimum allowed value is 10, maximum allowed
+   *   value is 60000).
+   *
+   * @deprecated use {@link #setMaxBatchAge(long)}
+   */
+  @Deprecated
+  public void setUpdateInterval(long aValue) {
+    this.setMaxBatchAge(aValue);
+  }
+
+  /**
+   * Returns the maximum time in milliseconds a new message waits before it is
+   * sent. Messages added within this time are sent together.
    * <p>
    * Default value is 200.
    * </p>
    *
-   * @return current updateInterval property value
+   * @return current maxBatchAge property value
    */
-  public long getUpdateInterval() {
+  public long getMaxBatchAge() {
     synchronized (this.m_propertySemaphore) {
-      return this.m_updateInterval;
+      return this.m_maxBatchAge;
     }
   }
 
   /**
-   * Sets the updateInterval property. This new value will be used with the
-   * next wait call.
+   * Sets the maxBatchAge property. This new value will be used for messages
+   * added after this call.
    * <p>
    * This value determines the maximum delay between creating messages and
    * sending them.
@@ -1046,56 +1400,355 @@ public class IQUSDK {
    *   New value to use (minimum allowed value is 10, maximum allowed
    *   value is 60000).
    */
-  public void setUpdateInterval(long aValue) {
+  public void setMaxBatchAge(long aValue) {
     synchronized (this.m_propertySemaphore) {
-      this.m_updateInterval = Math.min(60000, Math.max(10, aValue));
+      this.m_maxBatchAge = Math.min(60000, Math.max(10, aValue));
     }
   }
 
   /**
-   * This property determines the maximum time in milliseconds sending a
-   * message to the IQU server is allowed to take.
+   * Returns the maximum number of messages sent with one request. Once this
+   * number of messages is waiting, the messages are sent without waiting for
+   * {@link #getMaxBatchAge() maxBatchAge} to pass.
    * <p>
-   * If there is no response by the IQU server within this time, the SDK
-   * assumes the server is not reachable and will set the
-   * {@link #getServerAvailable() serverAvailable} property to
-   * <code>false</code> .
-   * </p>
-   * <p>
-   * Default value is 20000 (20 seconds).
+   * Default value is 500.
    * </p>
    *
-   * @return current sendTimeout property value
+   * @return current maxBatchMessages property value
    */
-  public long getSendTimeout() {
+  public int getMaxBatchMessages() {
     synchronized (this.m_propertySemaphore) {
-      return this.m_sendTimeout;
+      return this.m_maxBatchMessages;
     }
   }
 
   /**
-   * Changes the sendTimout property value. The minimum value allowed is 100.
+   * Changes the maximum number of messages sent with one request. The
+   * minimum value allowed is 1.
    *
    * @param aValue
    *   New value to use.
    */
-  public void setSendTimeout(long aValue) {
+  public void setMaxBatchMessages(int aValue) {
     synchronized (this.m_propertySemaphore) {
-      this.m_sendTimeout = Math.max(100, aValue);
+      this.m_maxBatchMessages = Math.max(1, aValue);
     }
   }
 
   /**
-   * This property determines the time between server availability checks in
-   * milliseconds.
-   * <p>
-   * This property is used once the sending of a message fails. The
-   * checkServerInterval property determines the time the SDK waits before
-   * checking the availability of the server and trying to resend the
-   * messages.
-   * </p>
+   * Returns the maximum size in bytes of the content of one request. A
+   * message larger than this size is sent by itself. Once the estimated size
+   * of the waiting messages reaches this size, the messages are sent without
+   * waiting for {@link #getMaxBatchAge() maxBatchAge} to pass.
    * <p>
-   * The default value is 2000 (2 seconds).
+   * Default value is 262144 (256KB).
+   * </p>
+   *
+   * @return current maxBatchBytes property value
+   */
+  public long getMaxBatchBytes() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_maxBatchBytes;
+    }
+  }
+
+  /**
+   * Changes the maximum size in bytes of the content of one request. The
+   * minimum value allowed is 1024.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setMaxBatchBytes(long aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_maxBatchBytes = Math.max(1024, aValue);
+    }
+  }
+
+  /**
+   * Returns the event types that are sent right away, without waiting for
+   * {@link #getMaxBatchAge() maxBatchAge} to pass.
+   * <p>
+   * Default value is { "revenue" }.
+   * </p>
+   *
+   * @return copy of the urgent event types
+   */
+  public String[] getUrgentEventTypes() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_urgentEventTypes.clone();
+    }
+  }
+
+  /**
+   * Changes the event types that are sent right away. The types are the
+   * values of the "type" field of the messages, for example "revenue" or
+   * "item_purchase".
+   *
+   * @param aValue
+   *   New event types to use.
+   */
+  public void setUrgentEventTypes(String... aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_urgentEventTypes = aValue == null ? new String[0] : aValue.clone();
+    }
+  }
+
+  /**
+   * Returns the maximum number of requests that are sent at the same time
+   * when there are more messages than fit in one request. Every request is
+   * removed from persistent storage on its own once the server accepted it.
+   * <p>
+   * Default value is 1 (the next request is sent once the previous request
+   * has finished).
+   * </p>
+   *
+   * @return current maxInFlightBatches property value
+   */
+  public int getMaxInFlightBatches() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_maxInFlightBatches;
+    }
+  }
+
+  /**
+   * Changes the maximum number of requests that are sent at the same time.
+   * The minimum value allowed is 1, the maximum value allowed is 16.
+   * <p>
+   * Unless {@link #setPreserveUserOrder(boolean) preserveUserOrder} has been
+   * set, a value above 1 also turns preserveUserOrder off (and a value of 1
+   * turns it on again); otherwise all requests of a device would still be
+   * sent one at a time.
+   * </p>
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setMaxInFlightBatches(int aValue) {
+    boolean collapsed;
+    synchronized (this.m_propertySemaphore) {
+      this.m_maxInFlightBatches = Math.min(MAX_IN_FLIGHT_BATCHES, Math.max(1, aValue));
+      if (!this.m_preserveUserOrderSet) {
+        this.m_preserveUserOrder = this.m_maxInFlightBatches <= 1;
+      }
+      collapsed = this.m_preserveUserOrder && (this.m_maxInFlightBatches > 1);
+    }
+    if (DEBUG && collapsed) {
+      this.logOrderWarning();
+    }
+  }
+
+  /**
+   * Returns if the messages of a user are sent in the order they were
+   * created. When <code>true</code>, requests that are sent at the same time
+   * never contain messages with the same SDK id, so a failed request can be
+   * sent again without changing the order of the messages of its users.
+   * <p>
+   * On a device all messages have the same SDK id, so while this property is
+   * <code>true</code> only one request is sent at a time and
+   * {@link #getMaxInFlightBatches() maxInFlightBatches} has no effect. Turn
+   * this property off to send several requests at the same time if the
+   * server does not depend on the order of the messages (it can use the
+   * timestamp of every event instead).
+   * </p>
+   * <p>
+   * Default value is <code>true</code>; setting maxInFlightBatches to a value
+   * above 1 turns it off unless this property has been set explicitly.
+   * </p>
+   *
+   * @return current preserveUserOrder property value
+   */
+  public boolean getPreserveUserOrder() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_preserveUserOrder;
+    }
+  }
+
+  /**
+   * Turns preserving the order of the messages of every user on or off.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setPreserveUserOrder(boolean aValue) {
+    boolean collapsed;
+    synchronized (this.m_propertySemaphore) {
+      this.m_preserveUserOrder = aValue;
+      this.m_preserveUserOrderSet = true;
+      collapsed = aValue && (this.m_maxInFlightBatches > 1);
+    }
+    if (DEBUG && collapsed) {
+      this.logOrderWarning();
+    }
+  }
+
+  /**
+   * Returns if requests are compressed. When <code>true</code>, requests of
+   * at least {@link #getCompressionThreshold() compressionThreshold} bytes
+   * are sent gzip compressed (<code>Content-Encoding: gzip</code>).
+   * <p>
+   * Default value is <code>false</code>.
+   * </p>
+   *
+   * @return current compressionEnabled property value
+   */
+  public boolean getCompressionEnabled() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_compressionEnabled;
+    }
+  }
+
+  /**
+   * Turns compression of requests on or off.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setCompressionEnabled(boolean aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_compressionEnabled = aValue;
+    }
+  }
+
+  /**
+   * Returns the minimum size in bytes of a request before it is compressed.
+   * Smaller requests are sent uncompressed, since compressing them saves
+   * hardly any bytes.
+   * <p>
+   * Default value is 1024.
+   * </p>
+   *
+   * @return current compressionThreshold property value
+   */
+  public long getCompressionThreshold() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_compressionThreshold;
+    }
+  }
+
+  /**
+   * Changes the compressionThreshold property. The minimum value allowed is
+   * 0.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setCompressionThreshold(long aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_compressionThreshold = Math.max(0, aValue);
+    }
+  }
+
+  /**
+   * Returns the compression level, from 1 (fastest) to 9 (smallest).
+   * <p>
+   * Default value is 6.
+   * </p>
+   *
+   * @return current compressionLevel property value
+   */
+  public int getCompressionLevel() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_compressionLevel;
+    }
+  }
+
+  /**
+   * Changes the compressionLevel property. The value is limited to the range
+   * 1 to 9.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setCompressionLevel(int aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_compressionLevel = Math.min(9, Math.max(1, aValue));
+    }
+  }
+
+  /**
+   * Returns the request format. When <code>false</code> every message
+   * contains its own ids. When <code>true</code> a request contains a table
+   * with every distinct set of ids once and every message refers to its ids
+   * by index, which makes requests with many messages of the same user a lot
+   * smaller:
+   * <p>
+   * { "identifiers":[ {..},.. ], "messages":[ {"identifiers":0,"event":{..}},.. ] }
+   * </p>
+   * <p>
+   * Only turn this property on when the server supports the format.
+   * </p>
+   * <p>
+   * Default value is <code>false</code>.
+   * </p>
+   *
+   * @return current sharedIdentifiers property value
+   */
+  public boolean getSharedIdentifiers() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_sharedIdentifiers;
+    }
+  }
+
+  /**
+   * Selects the request format, see {@link #getSharedIdentifiers()}.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setSharedIdentifiers(boolean aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_sharedIdentifiers = aValue;
+    }
+  }
+
+  /**
+   * This property determines the maximum time in milliseconds sending a
+   * message to the IQU server is allowed to take.
+   * <p>
+   * If there is no response by the IQU server within this time, the SDK
+   * assumes the server is not reachable and will set the
+   * {@link #getServerAvailable() serverAvailable} property to
+   * <code>false</code> .
+   * </p>
+   * <p>
+   * Default value is 20000 (20 seconds).
+   * </p>
+   *
+   * @return current sendTimeout property value
+   */
+  public long getSendTimeout() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_sendTimeout;
+    }
+  }
+
+  /**
+   * Changes the sendTimout property value. The minimum value allowed is 100.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setSendTimeout(long aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_sendTimeout = Math.max(100, aValue);
+    }
+  }
+
+  /**
+   * This property determines the base time between server availability checks
+   * in milliseconds.
+   * <p>
+   * This property is used once the sending of a message fails. The SDK waits
+   * at most this time before checking the availability of the server and
+   * trying to resend the messages. Every next failure doubles the maximum
+   * wait time (up to {@link #getMaxRetryInterval() maxRetryInterval}); the
+   * actual wait time is a random value below the maximum. Server errors wait
+   * twice and rejected requests (4xx) eight times as long as connection
+   * errors.
+   * </p>
+   * <p>
+   * The default value is 2000 (2 seconds).
    * </p>
    *
    * @return interval time for server check
@@ -1119,6 +1772,328 @@ public class IQUSDK {
     }
   }
 
+  /**
+   * This property determines the maximum time between server availability
+   * checks in milliseconds.
+   * <p>
+   * The default value is 300000 (5 minutes).
+   * </p>
+   *
+   * @return maximum interval time for server check
+   */
+  public long getMaxRetryInterval() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_maxRetryInterval;
+    }
+  }
+
+  /**
+   * Changes the maxRetryInterval property. The minimum value allowed is 100.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setMaxRetryInterval(long aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_maxRetryInterval = Math.max(100, aValue);
+    }
+  }
+
+  /**
+   * Returns the state of the connection to the server.
+   * <p>
+   * The state is {@link IQUCircuitState#CLOSED} while messages are sent
+   * successfully. After a failed request the state changes to
+   * {@link IQUCircuitState#OPEN} and no requests are sent until
+   * {@link #getNextAttemptTime() nextAttemptTime}; then the state changes to
+   * {@link IQUCircuitState#HALF_OPEN} and a single small batch of messages
+   * is sent to check if the server is available again.
+   * </p>
+   *
+   * @return current circuit state
+   */
+  public IQUCircuitState getCircuitState() {
+    return this.m_retryScheduler.getState();
+  }
+
+  /**
+   * Returns the time the server is checked again after a failed request.
+   *
+   * @return time in milliseconds since 1 January 1970 UTC or 0 if the last
+   *   request was successful
+   */
+  public long getNextAttemptTime() {
+    return this.m_retryScheduler.getNextAttemptTime();
+  }
+
+  /**
+   * Returns how pending messages are stored.
+   * <p>
+   * The default value is {@link IQUStorageMode#JOURNAL}.
+   * </p>
+   *
+   * @return current storage mode
+   */
+  public IQUStorageMode getStorageMode() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_storageMode;
+    }
+  }
+
+  /**
+   * Sets how pending messages are stored. The new value is used the next
+   * time one of the <code>start()</code> methods is called.
+   * <p>
+   * Use {@link IQUStorageMode#MAPPED_RING} to store pending messages in a
+   * memory mapped file instead of in memory. If the ring file can not be
+   * created or is full, messages are stored as with
+   * {@link IQUStorageMode#JOURNAL}.
+   * </p>
+   *
+   * @param aValue
+   *   New storage mode to use.
+   */
+  public void setStorageMode(IQUStorageMode aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_storageMode = aValue;
+    }
+  }
+
+  /**
+   * Returns the size in bytes of the ring file used with
+   * {@link IQUStorageMode#MAPPED_RING}.
+   * <p>
+   * The default value is 16777216 (16MB).
+   * </p>
+   *
+   * @return ring capacity in bytes
+   */
+  public int getRingCapacity() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_ringCapacity;
+    }
+  }
+
+  /**
+   * Changes the size of the ring file. The new value is used the next time
+   * one of the <code>start()</code> methods is called and the existing ring
+   * file does not contain any messages. The minimum value allowed is 65536.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setRingCapacity(int aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_ringCapacity = Math.max(65536, aValue);
+    }
+  }
+
+  /**
+   * Returns the maximum number of pending messages. Once the maximum has been
+   * reached, messages are removed as determined by the
+   * <code>overflowPolicy</code> property.
+   * <p>
+   * The default value is 100000.
+   * </p>
+   *
+   * @return maximum number of pending messages
+   */
+  public int getMaxPendingMessages() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_maxPendingMessages;
+    }
+  }
+
+  /**
+   * Changes the maximum number of pending messages. The minimum value allowed
+   * is 100.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setMaxPendingMessages(int aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_maxPendingMessages = Math.max(100, aValue);
+    }
+  }
+
+  /**
+   * Returns the maximum size of all pending messages. The size is estimated
+   * using the number of characters in the events and ids.
+   * <p>
+   * The default value is 33554432 (32MB).
+   * </p>
+   *
+   * @return maximum size of pending messages
+   */
+  public long getMaxPendingSize() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_maxPendingSize;
+    }
+  }
+
+  /**
+   * Changes the maximum size of all pending messages. The minimum value
+   * allowed is 65536.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setMaxPendingSize(long aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_maxPendingSize = Math.max(65536, aValue);
+    }
+  }
+
+  /**
+   * Returns how messages are removed once the maximum number or size of
+   * pending messages has been reached.
+   * <p>
+   * The default value is {@link IQUOverflowPolicy#DROP_LOWEST_PRIORITY}.
+   * </p>
+   *
+   * @return current overflow policy
+   */
+  public IQUOverflowPolicy getOverflowPolicy() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_overflowPolicy;
+    }
+  }
+
+  /**
+   * Changes how messages are removed once the maximum number or size of
+   * pending messages has been reached.
+   *
+   * @param aValue
+   *   New overflow policy to use.
+   */
+  public void setOverflowPolicy(IQUOverflowPolicy aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_overflowPolicy = aValue;
+    }
+  }
+
+  /**
+   * Returns the number of messages that were removed or not added because
+   * the maximum number or size of pending messages was reached.
+   *
+   * @return number of evicted messages since the SDK was created
+   */
+  public long getEvictedMessageCount() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_evictedMessageCount;
+    }
+  }
+
+  /**
+   * Returns the number of messages the server rejected. When the server
+   * rejects a request because of its content, the messages are sent again in
+   * smaller requests to find the rejected messages. These messages are moved
+   * to a separate dead-letter store, so they no longer block the messages
+   * after them.
+   *
+   * @return number of rejected messages since the SDK was created
+   */
+  public long getDeadLetterCount() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_deadLetterCount;
+    }
+  }
+
+  /**
+   * Returns the maximum size of the dead-letter store. Once the store
+   * becomes larger, the oldest rejected messages are removed. Use
+   * {@link #clearDeadLetters()} to remove all of them.
+   * <p>
+   * The default value is 1048576 (1MB).
+   * </p>
+   *
+   * @return maximum size in bytes of the dead-letter store
+   */
+  public long getMaxDeadLetterSize() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_maxDeadLetterSize;
+    }
+  }
+
+  /**
+   * Changes the maximum size of the dead-letter store. The minimum value
+   * allowed is 65536.
+   *
+   * @param aValue
+   *   New value to use.
+   */
+  public void setMaxDeadLetterSize(long aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_maxDeadLetterSize = Math.max(65536, aValue);
+    }
+  }
+
+  /**
+   * Returns the part of the requests to the server that used an existing
+   * connection instead of opening a new one.
+   *
+   * @return value between 0.0 (every request opened a new connection) and
+   *   1.0 (all requests used an existing connection) or -1.0 if the
+   *   transport can not determine it
+   */
+  public double getConnectionReuseRate() {
+    IQUNetwork network = this.m_network;
+    return network == null ? 0.0 : network.getConnectionReuseRate();
+  }
+
+  /**
+   * Returns how requests are sent to the server.
+   * <p>
+   * The default value is {@link IQUTransportType#AUTOMATIC}.
+   * </p>
+   *
+   * @return current transport type
+   */
+  public IQUTransportType getTransportType() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_transportType;
+    }
+  }
+
+  /**
+   * Changes how requests are sent to the server. The new value is used the
+   * next time one of the <code>start()</code> methods is called.
+   *
+   * @param aValue
+   *   New transport type to use.
+   */
+  public void setTransportType(IQUTransportType aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_transportType = aValue;
+    }
+  }
+
+  /**
+   * Returns the URL requests are sent to.
+   *
+   * @return service URL
+   */
+  public String getServiceUrl() {
+    synchronized (this.m_propertySemaphore) {
+      return this.m_serviceUrl;
+    }
+  }
+
+  /**
+   * Changes the URL requests are sent to, for example to use a local test
+   * server. The new value is used the next time one of the
+   * <code>start()</code> methods is called.
+   *
+   * @param aValue
+   *   New URL to use (must end with /)
+   */
+  public void setServiceUrl(String aValue) {
+    synchronized (this.m_propertySemaphore) {
+      this.m_serviceUrl = aValue;
+    }
+  }
+
   /**
    * Gets the current log enabled value.
    *
@@ -1258,6 +2233,25 @@ public class IQUSDK {
     return this.m_application;
   }
 
+  /**
+   * Returns the current ids snapshot.
+   *
+   * @return ids snapshot
+   */
+  protected IQUIds ids() {
+    return this.m_ids;
+  }
+
+  /**
+   * Returns the message journal. This property is available after init() has
+   * been called.
+   *
+   * @return message journal instance.
+   */
+  protected IQUMessageJournal journal() {
+    return this.m_journal;
+  }
+
   //
   // PROTECTED METHODS
   //
@@ -1314,10 +2308,28 @@ public class IQUSDK {
       anApplication.getSharedPreferences("IQU_SDK", 0)
     );
     // create network
-    this.m_network = new IQUNetwork(anApiKey, aSecretKey);
+    this.m_network = new IQUNetwork(
+      anApiKey, aSecretKey, this.getServiceUrl(), this.getTransportType()
+    );
+    // create journal to store messages in; id changes from now on are stored
+    // in it
+    this.m_journal = new IQUMessageJournal(anApplication.getFilesDir());
+    this.m_storedIds = this.m_ids;
+    // create journal to store rejected messages in
+    File deadLetterDirectory = new File(anApplication.getFilesDir(), DEAD_LETTER_DIRECTORY);
+    if (!deadLetterDirectory.isDirectory() && !deadLetterDirectory.mkdirs() && DEBUG) {
+      this.addLog("[Init] could not create " + deadLetterDirectory.getPath());
+    }
+    this.m_deadLetters = new IQUMessageJournal(deadLetterDirectory);
+    // create ring file if required
+    if (this.getStorageMode() == IQUStorageMode.MAPPED_RING) {
+      this.createRing(anApplication);
+    }
     // create message queues
     this.m_pendingMessages = new IQUMessageQueue();
     this.m_sendingMessages = new IQUMessageQueue();
+    this.m_inbox = new IQUMessageInbox();
+    this.m_events = new IQUEventRing(EVENT_RING_CAPACITY);
     // update properties
     this.setPayable(aPayable);
     // retrieve or create an unique ID
@@ -1332,6 +2344,33 @@ public class IQUSDK {
     }
   }
 
+  /**
+   * Creates the ring file to store pending messages in. If the ring can not be
+   * created, the SDK will use the journal.
+   *
+   * @param anApplication
+   *   Application that is using the SDK
+   */
+  private void createRing(Application anApplication) {
+    try {
+      this.m_ring = new IQUMessageRing(
+        anApplication.getFilesDir(), this.getRingCapacity()
+      );
+      if (DEBUG) {
+        this.addLog(
+          "[Init] using ring file with " + this.m_ring.getCount() + " message(s)"
+        );
+      }
+    }
+    catch (Exception error) {
+      this.m_ring = null;
+      if (DEBUG) {
+        this.addLog("[Init][Error] While creating ring file: "
+          + error.getClass().getName() + ": " + error.getMessage());
+      }
+    }
+  }
+
   /**
    * Initializes the SDK further from within the update thread. This method is
    * called the first time update is called from within the update thread.
@@ -1344,8 +2383,13 @@ public class IQUSDK {
     // called.
     if (!this.getAnalyticsEnabled()) {
       synchronized (this.m_pendingMessagesSemaphore) {
+        this.m_events.clear();
+        this.m_inbox.clear();
         this.m_pendingMessages.clear(false);
       }
+      if (this.m_ring != null) {
+        this.m_ring.clear();
+      }
     }
     // load stored messages and prepend them to pending messages.
     this.loadMessages();
@@ -1371,6 +2415,11 @@ public class IQUSDK {
       this.m_network.destroy();
       this.m_network = null;
     }
+    this.m_events = null;
+    if (this.m_inbox != null) {
+      this.m_inbox.clear();
+      this.m_inbox = null;
+    }
     if (this.m_pendingMessages != null) {
       this.m_pendingMessages.destroy();
       this.m_pendingMessages = null;
@@ -1379,10 +2428,20 @@ public class IQUSDK {
       this.m_sendingMessages.destroy();
       this.m_sendingMessages = null;
     }
-    if (this.m_ids != null) {
-      this.m_ids.destroy();
-      this.m_ids = null;
+    if (this.m_journal != null) {
+      this.m_journal.destroy();
+      this.m_journal = null;
+    }
+    if (this.m_deadLetters != null) {
+      this.m_deadLetters.destroy();
+      this.m_deadLetters = null;
     }
+    if (this.m_ring != null) {
+      this.m_ring.destroy();
+      this.m_ring = null;
+    }
+    this.m_ids = null;
+    this.m_storedIds = null;
   }
 
   //
@@ -1438,14 +2497,58 @@ public class IQUSDK {
    *   Value to store.
    */
   private void setId(IQUIdType aType, String aValue) {
+    // publish a new snapshot; messages keep the snapshot they were created
+    // with and resolve their empty ids when they are sent or saved. The
+    // change is stored in the journal when messages are saved, see
+    // storeIdUpdates.
     synchronized (this.m_idsSemaphore) {
-      this.m_ids.set(aType, aValue);
+      this.m_ids = this.m_ids.publish(aType, aValue);
     }
-    if (this.getInitialized()) {
-      synchronized (this.m_pendingMessagesSemaphore) {
-        this.m_pendingMessages.updateId(aType, aValue);
+  }
+
+  /**
+   * Stores the id changes published since the previous call in the journal,
+   * in the order they were published, so they get applied to the stored
+   * messages when loading.
+   *
+   * @return ids snapshot containing all stored changes
+   */
+  private IQUIds storeIdUpdates() {
+    IQUMessageJournal journal = this.m_journal;
+    IQUIds current = this.m_ids;
+    synchronized (journal) {
+      IQUIds ids = this.m_storedIds;
+      try {
+        while ((ids != current) && (ids.getNext() != null)) {
+          IQUIds next = ids.getNext();
+          IQUIdType type = ids.getPublishedType();
+          if (type != null) {
+            journal.appendUpdateId(type, next.get(type));
+          }
+          ids = next;
+        }
+      }
+      catch (Exception error) {
+        if (DEBUG) {
+          this.addLog("[Ids][Error] While storing id: " + error.getMessage());
+        }
       }
+      this.m_storedIds = ids;
     }
+    return current;
+  }
+
+  /**
+   * Saves messages to the journal. The id changes are stored first and the
+   * ids of the messages are resolved, so messages appended after an id
+   * change contain the new value.
+   *
+   * @param aMessages
+   *   Messages to save
+   */
+  private void saveMessages(IQUMessageQueue aMessages) {
+    aMessages.resolveIds(this.storeIdUpdates());
+    aMessages.save();
   }
 
   /**
@@ -1526,16 +2629,8 @@ public class IQUSDK {
           try {
             // call update
             IQUSDK.this.update();
-            // update running state
-            synchronized (IQUSDK.this.m_updateThreadVariableSemaphore) {
-              running = IQUSDK.this.m_updateThreadRunning;
-            }
-            // update might have changed the running variable
-            if (running) {
-              synchronized (this) {
-                this.wait(IQUSDK.this.getUpdateInterval());
-              }
-            }
+            // sleep until there is something to do
+            IQUSDK.this.waitForNextUpdate();
           }
           catch (Exception ignored) {
           }
@@ -1554,22 +2649,36 @@ public class IQUSDK {
   /**
    * Pauses the update thread, set thread paused to true and wait for the
    * update thread to finish.
+   *
+   * @param aMaxWait
+   *   Maximum time in milliseconds to wait for the update thread or 0 to
+   *   wait until the update thread has finished.
+   *
+   * @return <code>true</code> if no update call is active,
+   * <code>false</code> if the maximum time has passed.
    */
-  private void pauseUpdateThread() {
+  private boolean pauseUpdateThread(long aMaxWait) {
+    long startTime = System.currentTimeMillis();
     // application is paused now (any call to update will return immediately)
     synchronized (IQUSDK.this.m_updateThreadVariableSemaphore) {
       this.m_updateThreadPaused = true;
     }
     // cancel any IO being executed
-    if (this.m_network != null) {
-      this.m_network.cancelSend();
+    IQUNetwork network = this.m_network;
+    if (network != null) {
+      network.cancelSend();
     }
     // wait for update thread to finish current update call
-    this.waitForUpdateThread();
+    boolean finished = this.waitForUpdateThread(aMaxWait);
     // debug message
     if (IQUSDK.DEBUG) {
-      IQUSDK.this.addLog("[Thread] update thread paused");
+      IQUSDK.this.addLog(
+        "[Thread] update thread paused in "
+          + (System.currentTimeMillis() - startTime) + "ms"
+          + (finished ? "" : " (update still active)")
+      );
     }
+    return finished;
   }
 
   /**
@@ -1579,6 +2688,8 @@ public class IQUSDK {
     synchronized (this.m_updateThreadVariableSemaphore) {
       this.m_updateThreadPaused = false;
     }
+    // wake up the update thread to send the messages added while paused
+    this.scheduleUpdate(System.currentTimeMillis());
     // debug message
     if (IQUSDK.DEBUG) {
       IQUSDK.this.addLog("[Thread] update thread resumed");
@@ -1588,19 +2699,15 @@ public class IQUSDK {
   /**
    * Destroys the update thread (if any).
    */
-  @SuppressWarnings("SynchronizeOnNonFinalField")
   private void destroyUpdateThread() {
     // stop update thread (if one is active)
     if (this.m_updateThread != null) {
       // pause the update thread
-      this.pauseUpdateThread();
-      // stop running the thread
+      this.pauseUpdateThread(0);
+      // stop running the thread and notify it (in case it is waiting)
       synchronized (this.m_updateThreadVariableSemaphore) {
         this.m_updateThreadRunning = false;
-      }
-      // notify update thread (in case it is waiting)
-      synchronized (this.m_updateThread) {
-        this.m_updateThread.notify();
+        this.m_updateThreadVariableSemaphore.notifyAll();
       }
       // wait for update thread to finish
       try {
@@ -1608,28 +2715,169 @@ public class IQUSDK {
       }
       catch (Exception ignored) {
       }
-      // clear reference to update thread
-      this.m_updateThread = null;
+      // clear reference to update thread
+      this.m_updateThread = null;
+    }
+    // stop the threads sending batches; the update thread waited for every
+    // batch, so they only have to finish a cancelled request
+    if (this.m_sendExecutor != null) {
+      this.m_sendExecutor.shutdown();
+      try {
+        this.m_sendExecutor.awaitTermination(
+          this.getSendTimeout(), TimeUnit.MILLISECONDS
+        );
+      }
+      catch (InterruptedException error) {
+        Thread.currentThread().interrupt();
+      }
+      this.m_sendExecutor = null;
+    }
+  }
+
+  /**
+   * Schedules a call to update(). If the update thread is waiting for a later
+   * time, it is woken up.
+   *
+   * @param aTime
+   *   Time the update thread should call update()
+   */
+  private void scheduleUpdate(long aTime) {
+    // m_updateTime is only lowered while holding the lock and update() resets
+    // it before taking new messages, so skipping the lock is safe when an
+    // earlier (or the same) update time is already scheduled.
+    if (aTime >= this.m_updateTime) {
+      return;
+    }
+    synchronized (this.m_updateThreadVariableSemaphore) {
+      if (aTime < this.m_updateTime) {
+        this.m_updateTime = aTime;
+        this.m_updateThreadVariableSemaphore.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Schedules the sending of a new message. Messages are sent right away if
+   * the message is urgent or a full batch is waiting, else they are sent
+   * once maxBatchAge has passed since the oldest waiting message was added.
+   *
+   * @param anEventType
+   *   Event type of the new message
+   * @param aPendingCount
+   *   Number of pending messages including the new message
+   * @param aPendingSize
+   *   Estimated size of the pending messages including the new message
+   */
+  private void scheduleSend(
+    String anEventType, int aPendingCount, long aPendingSize
+  ) {
+    long time = System.currentTimeMillis();
+    if (
+      !this.isUrgentEventType(anEventType) &&
+      (aPendingCount < this.getMaxBatchMessages()) &&
+      (aPendingSize < this.getMaxBatchBytes())
+      ) {
+      time += this.getMaxBatchAge();
+    }
+    this.scheduleUpdate(time);
+  }
+
+  /**
+   * Checks if an event type is one of the urgent event types.
+   *
+   * @param anEventType
+   *   Event type to check
+   *
+   * @return <code>true</code> if messages of the type are sent right away.
+   */
+  private boolean isUrgentEventType(String anEventType) {
+    synchronized (this.m_propertySemaphore) {
+      for (String type : this.m_urgentEventTypes) {
+        if (type.equals(anEventType)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Schedules a call to update() for the next server check if messages could
+   * not be sent.
+   */
+  private void scheduleRetry() {
+    if (this.getServerAvailable()) {
+      return;
+    }
+    boolean pending;
+    synchronized (this.m_pendingMessagesSemaphore) {
+      pending =
+        !this.m_pendingMessages.isEmpty() || !this.m_inbox.isEmpty() ||
+        !this.m_events.isEmpty();
+    }
+    if (!pending && (this.m_ring != null)) {
+      pending = !this.m_ring.isEmpty();
+    }
+    if (pending) {
+      this.scheduleUpdate(this.m_retryScheduler.getNextAttemptTime());
+    }
+  }
+
+  /**
+   * Waits until update() has to be called again: new messages have to be
+   * sent, a heartbeat message is due or the update thread is stopped. While
+   * paused, the method waits until the update thread is resumed.
+   *
+   * @throws InterruptedException
+   *   if the thread was interrupted
+   */
+  private void waitForNextUpdate() throws InterruptedException {
+    synchronized (this.m_updateThreadVariableSemaphore) {
+      while (this.m_updateThreadRunning) {
+        if (this.m_updateThreadPaused) {
+          this.m_updateThreadVariableSemaphore.wait();
+          continue;
+        }
+        long time = Math.min(
+          this.m_updateTime, this.m_heartbeatTime + HEARTBEAT_INTERVAL
+        );
+        long delay = time - System.currentTimeMillis();
+        if (delay <= 0) {
+          return;
+        }
+        this.m_updateThreadVariableSemaphore.wait(delay);
+      }
     }
   }
 
   /**
    * Waits for the update thread to finish to current update call.
+   *
+   * @param aMaxWait
+   *   Maximum time in milliseconds to wait or 0 to wait until the update
+   *   call has finished.
+   *
+   * @return <code>true</code> if no update call is active,
+   * <code>false</code> if the maximum time has passed.
    */
-  private void waitForUpdateThread() {
-    boolean busy = true;
-    while (busy) {
-      synchronized (this.m_updateThreadVariableSemaphore) {
-        busy = this.m_updateThreadBusy;
-      }
-      if (busy) {
+  private boolean waitForUpdateThread(long aMaxWait) {
+    long endTime = System.currentTimeMillis() + aMaxWait;
+    synchronized (this.m_updateThreadVariableSemaphore) {
+      while (this.m_updateThreadBusy) {
+        long delay = aMaxWait == 0 ? 0 : endTime - System.currentTimeMillis();
+        if ((aMaxWait > 0) && (delay <= 0)) {
+          return false;
+        }
         try {
-          Thread.sleep(10);
+          this.m_updateThreadVariableSemaphore.wait(delay);
         }
-        catch (Exception ignored) {
+        catch (InterruptedException error) {
+          Thread.currentThread().interrupt();
+          return !this.m_updateThreadBusy;
         }
       }
     }
+    return true;
   }
 
   /**
@@ -1643,6 +2891,11 @@ public class IQUSDK {
       }
       // busy now
       this.m_updateThreadBusy = true;
+      // messages added from now on schedule a new update
+      this.m_updateTime = Long.MAX_VALUE;
+      // allow IO again; pause() cancels IO after it changed the paused
+      // state, so a cancel can not get lost
+      this.m_network.resetCancel();
     }
     // make sure m_updateThreadBusy gets reset to false
     try {
@@ -1655,11 +2908,18 @@ public class IQUSDK {
       }
       // process pending messages
       this.processPendingMessages();
+      // try again later if messages could not be sent
+      this.scheduleRetry();
+      // paused while sending? then pause() left saving to this thread
+      if (this.m_updateThreadPaused) {
+        this.savePendingMessages();
+      }
     }
     finally {
       synchronized (this.m_updateThreadVariableSemaphore) {
-        // update is no longer busy
+        // update is no longer busy, wake up a waiting pause call
         this.m_updateThreadBusy = false;
+        this.m_updateThreadVariableSemaphore.notifyAll();
       }
     }
   }
@@ -1675,18 +2935,152 @@ public class IQUSDK {
     IQUMessageQueue storedMessages = new IQUMessageQueue();
     storedMessages.load();
     synchronized (this.m_pendingMessagesSemaphore) {
+      this.drainInbox();
       this.m_pendingMessages.prepend(storedMessages, true);
+      this.limitPendingMessages();
     }
     storedMessages.destroy();
   }
 
+  /**
+   * Saves the pending messages to persistent storage.
+   */
+  private void savePendingMessages() {
+    IQUMessageQueue pendingMessages = this.m_pendingMessages;
+    if (pendingMessages != null) {
+      synchronized (this.m_pendingMessagesSemaphore) {
+        this.drainInbox();
+        this.saveMessages(pendingMessages);
+      }
+    }
+  }
+
+  /**
+   * Converts the tracked events to messages and moves the messages from the
+   * inbox to the end of the pending messages. The caller must lock
+   * m_pendingMessagesSemaphore.
+   */
+  private void drainInbox() {
+    IQUEventRing events = this.m_events;
+    if (events != null) {
+      for (IQUEventSlot slot = events.poll(); slot != null; slot = events.poll()) {
+        this.storeEventMessage(slot);
+        events.release(slot);
+      }
+    }
+    IQUMessageInbox inbox = this.m_inbox;
+    if (inbox != null) {
+      inbox.drainTo(this.m_pendingMessages);
+    }
+  }
+
+  /**
+   * Creates a message for a tracked event.
+   *
+   * @param aSlot
+   *   Slot containing the event
+   *
+   * @return message or null if a field could not be added (for example a
+   * NaN or infinite number); the event is then dropped instead of sending
+   * it without that field.
+   */
+  private IQUMessage createEventMessage(IQUEventSlot aSlot) {
+    JSONObject event = this.createEvent(aSlot.getType(), aSlot.getTime());
+    try {
+      aSlot.putFields(event);
+    }
+    catch (Exception error) {
+      if (DEBUG) {
+        this.addLog(
+          "[Event][Error] Dropped " + aSlot.getType() + " event: " +
+            error.getMessage()
+        );
+      }
+      return null;
+    }
+    return new IQUMessage(aSlot.getIds(), event);
+  }
+
+  /**
+   * Creates a message for a tracked event and stores it in the ring file
+   * (if used and there is room) or adds it to the pending messages. The
+   * caller must lock m_pendingMessagesSemaphore.
+   *
+   * @param aSlot
+   *   Slot containing the event
+   */
+  private void storeEventMessage(IQUEventSlot aSlot) {
+    IQUMessage message = this.createEventMessage(aSlot);
+    if (message == null) {
+      return;
+    }
+    IQUMessageRing ring = this.m_ring;
+    if ((ring != null) && ring.offer(message)) {
+      message.destroy();
+    }
+    else {
+      this.m_pendingMessages.add(message);
+    }
+  }
+
+  /**
+   * Converts the tracked events to messages, so their slots can be reused
+   * while a large backlog is being sent.
+   */
+  private void freeEventSlots() {
+    if (!this.m_events.isEmpty()) {
+      synchronized (this.m_pendingMessagesSemaphore) {
+        this.drainInbox();
+        this.limitPendingMessages();
+      }
+    }
+  }
+
+  /**
+   * Removes pending messages if there are too many of them. The caller must
+   * lock m_pendingMessagesSemaphore.
+   */
+  private void limitPendingMessages() {
+    this.addEvictedMessages(this.m_pendingMessages.evict(
+      this.getMaxPendingMessages(), this.getMaxPendingSize(),
+      this.getOverflowPolicy()
+    ));
+  }
+
+  /**
+   * Updates the evicted message count.
+   *
+   * @param aCount
+   *   Number of messages that were evicted.
+   */
+  private void addEvictedMessages(int aCount) {
+    if (aCount > 0) {
+      synchronized (this.m_propertySemaphore) {
+        this.m_evictedMessageCount += aCount;
+      }
+      if (DEBUG) {
+        this.addLog("[Queue] evicted " + aCount + " message(s)");
+      }
+    }
+  }
+
   /**
    * Processes the pending messages (if any) and try to send them to the
    * server.
    */
   private void processPendingMessages() {
+    // send messages stored in the ring file first
+    if (this.m_ring != null) {
+      // store tracked events in the ring file first
+      synchronized (this.m_pendingMessagesSemaphore) {
+        this.drainInbox();
+      }
+      this.processRingMessages();
+    }
     // wait till other threads are finished accessing pending message queue.
     synchronized (this.m_pendingMessagesSemaphore) {
+      // take the messages added by other threads since the last call
+      this.drainInbox();
       // move messages from pending messages to sending messages; this
       // will clear the pending message queue. The sending messages queue
       // is always empty before this call.
@@ -1706,7 +3100,7 @@ public class IQUSDK {
       else {
         // server not reachable, call save because new messages might
         // have been added since the previous call to this method.
-        this.m_sendingMessages.save();
+        this.saveMessages(this.m_sendingMessages);
       }
     }
     // wait till other threads are finished accessing pending message queue.
@@ -1716,41 +3110,459 @@ public class IQUSDK {
       // The queue property of every message in the sending queue is still
       // pointing to the pending message queue so no need to update it.
       this.m_pendingMessages.prepend(this.m_sendingMessages, false);
+      this.limitPendingMessages();
+    }
+  }
+
+  /**
+   * Sends the messages stored in the ring file in batches. Only the batches
+   * being sent are kept in memory; the messages of every batch are removed
+   * from the ring once the server accepted them. If a batch failed while its
+   * rejected messages were searched for, the messages that were accepted or
+   * moved to the dead-letter store are removed as well.
+   */
+  private void processRingMessages() {
+    List<IQUMessageQueue> batches = new ArrayList<IQUMessageQueue>();
+    int[] counts = new int[MAX_IN_FLIGHT_BATCHES];
+    int[] messageCounts = new int[MAX_IN_FLIGHT_BATCHES];
+    int[][] records = new int[MAX_IN_FLIGHT_BATCHES][];
+    IQUMessage[][] messages = new IQUMessage[MAX_IN_FLIGHT_BATCHES][];
+    boolean[] removed = null;
+    Set<String> users = new HashSet<String>();
+    while (!this.m_ring.isEmpty() && !this.m_updateThreadPaused) {
+      if (!this.checkServer()) {
+        return;
+      }
+      this.freeEventSlots();
+      // a probe is sent as a single small batch
+      boolean probe = this.m_retryScheduler.getState() == IQUCircuitState.HALF_OPEN;
+      int window = probe ? 1 : this.getMaxInFlightBatches();
+      int maxCount = this.getMaxBatchMessages();
+      long maxBytes = this.getMaxBatchBytes();
+      if (probe) {
+        maxCount = Math.min(maxCount, PROBE_BATCH_MESSAGES);
+        maxBytes = Math.min(maxBytes, PROBE_BATCH_BYTES);
+      }
+      boolean preserveOrder = this.getPreserveUserOrder() && (window > 1);
+      // read the batches of the window
+      int skip = 0;
+      users.clear();
+      while (batches.size() < window) {
+        IQUMessageQueue batch = new IQUMessageQueue();
+        int position = batches.size();
+        if ((records[position] == null) || (records[position].length < maxCount)) {
+          records[position] = new int[maxCount];
+          messages[position] = new IQUMessage[maxCount];
+        }
+        int count = this.m_ring.peek(
+          batch, skip, maxCount, maxBytes, records[position]
+        );
+        if (count == 0) {
+          break;
+        }
+        // resolve the ids that were unknown when the messages were added
+        batch.resolveIds(this.m_ids);
+        if (preserveOrder) {
+          if (!batches.isEmpty() && batch.hasUserKey(users)) {
+            batch.clear(false);
+            break;
+          }
+          batch.addUserKeys(users);
+        }
+        counts[position] = count;
+        messageCounts[position] = batch.copyTo(messages[position]);
+        batches.add(batch);
+        skip += count;
+      }
+      int[] results = this.sendBatches(batches);
+      // acknowledge the last batch first, see IQUMessageRing.acknowledge
+      int failure = IQUNetwork.RESULT_OK;
+      for (int index = batches.size() - 1; index >= 0; index--) {
+        skip -= counts[index];
+        if (results[index] == IQUNetwork.RESULT_OK) {
+          this.m_ring.acknowledge(skip, counts[index]);
+        }
+        else {
+          failure = results[index];
+          // the batch contains the messages that were neither accepted nor
+          // rejected, see isolateRejected; remove the other messages so they
+          // are not sent or dead-lettered again
+          if ((removed == null) || (removed.length < messageCounts[index])) {
+            removed = new boolean[messageCounts[index]];
+          }
+          batches.get(index).findRemoved(
+            messages[index], messageCounts[index], removed
+          );
+          this.acknowledgeRemoved(
+            skip, records[index], removed, messageCounts[index]
+          );
+        }
+        Arrays.fill(messages[index], 0, messageCounts[index], null);
+        batches.get(index).clear(false);
+      }
+      batches.clear();
+      this.recordResult(failure);
+      if (failure != IQUNetwork.RESULT_OK) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes the records of the messages of a batch that were accepted or
+   * moved to the dead-letter store from the ring. Consecutive records are
+   * acknowledged together, the last ones first.
+   *
+   * @param aSkip
+   *   Index of the first record of the batch
+   * @param aRecords
+   *   For every message the number of records before it, see
+   *   IQUMessageRing.peek
+   * @param aRemoved
+   *   For every message if it was removed from the batch
+   * @param aCount
+   *   Number of messages in the batch
+   */
+  private void acknowledgeRemoved(
+    int aSkip, int[] aRecords, boolean[] aRemoved, int aCount
+  ) {
+    int last = aCount - 1;
+    while (last >= 0) {
+      if (!aRemoved[last]) {
+        last--;
+        continue;
+      }
+      int first = last;
+      while ((first > 0) && aRemoved[first - 1]) {
+        first--;
+      }
+      // include the sent or invalid records before the first message
+      int start = first == 0 ? 0 : aRecords[first];
+      this.m_ring.acknowledge(aSkip + start, aRecords[last] + 1 - start);
+      last = first - 1;
     }
   }
 
   /**
-   * Tries to send the messages to the server. When successful the messages
-   * get destroyed, else the messages get saved. This method will also update
-   * the serverAvailable property.
+   * Tries to send the messages to the server in one or more requests; every
+   * request contains at most maxBatchMessages messages and maxBatchBytes
+   * bytes and up to maxInFlightBatches requests are sent at the same time.
+   * Sent messages get destroyed; if a request fails the messages that were
+   * not sent get saved. This method will also update the serverAvailable
+   * property.
    *
    * @param aMessages
    *   Messages to send to the server.
    */
   private void sendMessages(IQUMessageQueue aMessages) {
-    // try to send messages to the server
-    if (this.m_network.send(aMessages)) {
-      // messages were sent successfully, so destroy them (including
-      // persistent storage)
-      aMessages.clear(true);
-      // update property
-      this.setServerAvailable(true);
+    // resolve the ids that were unknown when the messages were created
+    aMessages.resolveIds(this.m_ids);
+    List<IQUMessageQueue> batches = new ArrayList<IQUMessageQueue>();
+    Set<String> users = new HashSet<String>();
+    while (!aMessages.isEmpty()) {
+      this.freeEventSlots();
+      // while checking if the server is available again, send a single small
+      // batch; once it is accepted the normal limits are used again
+      boolean probe = this.m_retryScheduler.getState() == IQUCircuitState.HALF_OPEN;
+      int window = probe ? 1 : this.getMaxInFlightBatches();
+      int maxCount = this.getMaxBatchMessages();
+      long maxBytes = this.getMaxBatchBytes();
+      if (probe) {
+        maxCount = Math.min(maxCount, PROBE_BATCH_MESSAGES);
+        maxBytes = Math.min(maxBytes, PROBE_BATCH_BYTES);
+      }
+      boolean preserveOrder = this.getPreserveUserOrder() && (window > 1);
+      // take the batches of the window from the start of the queue
+      users.clear();
+      while ((batches.size() < window) && !aMessages.isEmpty()) {
+        IQUMessageQueue batch = new IQUMessageQueue();
+        aMessages.moveFirst(batch, maxCount, maxBytes);
+        if (preserveOrder) {
+          if (!batches.isEmpty() && batch.hasUserKey(users)) {
+            aMessages.prepend(batch, false);
+            break;
+          }
+          batch.addUserKeys(users);
+        }
+        batches.add(batch);
+      }
+      // try to send messages to the server
+      int[] results = this.sendBatches(batches);
+      // destroy the sent messages; the journal head is moved for the batches
+      // before the first failed batch, later batches are removed from the
+      // journal message by message.
+      int failure = IQUNetwork.RESULT_OK;
+      for (int index = 0; index < batches.size(); index++) {
+        if (results[index] != IQUNetwork.RESULT_OK) {
+          if (failure == IQUNetwork.RESULT_OK) {
+            failure = results[index];
+          }
+        }
+        else if (failure == IQUNetwork.RESULT_OK) {
+          batches.get(index).clear(true);
+        }
+        else {
+          batches.get(index).discard();
+        }
+      }
+      // update serverAvailable and the retry scheduler
+      this.recordResult(failure);
+      if (failure != IQUNetwork.RESULT_OK) {
+        // put the messages that were not sent back in their original order
+        // and append new messages to the journal
+        for (int index = batches.size() - 1; index >= 0; index--) {
+          if (results[index] != IQUNetwork.RESULT_OK) {
+            aMessages.prepend(batches.get(index), false);
+          }
+        }
+        this.saveMessages(aMessages);
+        return;
+      }
+      batches.clear();
     }
-    else {
-      if (DEBUG) {
-        this.addLog("[Network] server is not available");
+  }
+
+  /**
+   * Sends batches to the server at the same time. The first batch is sent
+   * from the calling thread. The other batches are sent asynchronously if the
+   * transport supports it (no thread per request), else from the send
+   * executor.
+   *
+   * @param aBatches
+   *   Batches to send
+   *
+   * @return for every batch one of the IQUNetwork.RESULT_ constants
+   */
+  private int[] sendBatches(List<IQUMessageQueue> aBatches) {
+    int count = aBatches.size();
+    int[] result = new int[count];
+    List<Future<JSONObject>> responses = new ArrayList<Future<JSONObject>>(count);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>(count);
+    for (int index = 1; index < count; index++) {
+      final IQUMessageQueue batch = aBatches.get(index);
+      Future<JSONObject> response = batch.isEmpty()
+        ? null
+        : this.m_network.sendAsync(batch);
+      responses.add(response);
+      futures.add(response != null ? null : this.getSendExecutor().submit(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return IQUSDK.this.sendBatch(batch);
+          }
+        }
+      ));
+    }
+    if (count > 0) {
+      result[0] = this.sendBatch(aBatches.get(0));
+    }
+    for (int index = 1; index < count; index++) {
+      Future<JSONObject> response = responses.get(index - 1);
+      try {
+        result[index] = response != null
+          ? this.finishBatch(
+              aBatches.get(index), this.m_network.finishSend(response)
+            )
+          : futures.get(index - 1).get();
+      }
+      catch (Exception error) {
+        result[index] = IQUNetwork.RESULT_CONNECT_ERROR;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sends a batch to the server.
+   *
+   * @param aBatch
+   *   Batch to send
+   *
+   * @return one of the IQUNetwork.RESULT_ constants; RESULT_OK if the batch
+   * is empty.
+   */
+  private int sendBatch(IQUMessageQueue aBatch) {
+    if (aBatch.isEmpty()) {
+      return IQUNetwork.RESULT_OK;
+    }
+    return this.finishBatch(aBatch, this.m_network.send(aBatch));
+  }
+
+  /**
+   * Handles the result of a sent batch; if the server rejected the batch the
+   * rejected messages are searched for.
+   *
+   * @param aBatch
+   *   Batch that was sent
+   * @param aResult
+   *   One of the IQUNetwork.RESULT_ constants
+   *
+   * @return one of the IQUNetwork.RESULT_ constants
+   */
+  private int finishBatch(IQUMessageQueue aBatch, int aResult) {
+    if (aResult == IQUNetwork.RESULT_REJECTED) {
+      return this.isolateRejected(aBatch);
+    }
+    return aResult;
+  }
+
+  /**
+   * Finds the messages the server rejects in a rejected batch by sending
+   * both halves of the batch separately, until the rejected messages are
+   * found. Accepted messages are destroyed, rejected messages are moved to
+   * the dead-letter store.
+   * <p>
+   * If both halves are rejected, the server rejects the request itself (for
+   * example because of its format) rather than certain messages. The search
+   * then stops with RESULT_CLIENT_ERROR, so the messages are sent again
+   * later instead of being moved to the dead-letter store.
+   * </p>
+   * <p>
+   * If the search stops, aBatch contains the messages that were neither
+   * accepted nor rejected, in their original order.
+   * </p>
+   *
+   * @param aBatch
+   *   Batch the server rejected
+   *
+   * @return RESULT_OK if every message was accepted or rejected, else the
+   * IQUNetwork.RESULT_ constant of the failure
+   */
+  private int isolateRejected(IQUMessageQueue aBatch) {
+    if (aBatch.getCount() == 1) {
+      return this.addDeadLetters(aBatch)
+        ? IQUNetwork.RESULT_OK
+        : IQUNetwork.RESULT_CLIENT_ERROR;
+    }
+    IQUMessageQueue half = new IQUMessageQueue();
+    aBatch.moveFirst(half, aBatch.getCount() / 2, Long.MAX_VALUE);
+    int result = this.m_network.send(half);
+    if (result == IQUNetwork.RESULT_OK) {
+      // messages before half might not have been sent yet
+      half.discard();
+      return this.sendIsolated(aBatch);
+    }
+    if (result == IQUNetwork.RESULT_REJECTED) {
+      // check the other half before searching the first half
+      result = this.m_network.send(aBatch);
+      switch (result) {
+        case IQUNetwork.RESULT_OK:
+          aBatch.discard();
+          result = this.isolateRejected(half);
+          break;
+        case IQUNetwork.RESULT_REJECTED:
+          if (DEBUG) {
+            this.addLog("[Network] server rejected both halves of a batch");
+          }
+          result = IQUNetwork.RESULT_CLIENT_ERROR;
+          break;
       }
-      // messages were not sent, save them to persistent storage
-      aMessages.save();
-      // update property
-      this.setServerAvailable(false);
     }
+    aBatch.prepend(half, false);
+    return result;
+  }
+
+  /**
+   * Sends part of a rejected batch, see {@link #isolateRejected}.
+   *
+   * @param aPart
+   *   Messages to send
+   *
+   * @return one of the IQUNetwork.RESULT_ constants
+   */
+  private int sendIsolated(IQUMessageQueue aPart) {
+    int result = this.m_network.send(aPart);
+    switch (result) {
+      case IQUNetwork.RESULT_OK:
+        // messages before aPart might not have been sent yet
+        aPart.discard();
+        return result;
+      case IQUNetwork.RESULT_REJECTED:
+        return this.isolateRejected(aPart);
+      default:
+        return result;
+    }
+  }
+
+  /**
+   * Moves rejected messages to the dead-letter store and updates the
+   * deadLetterCount property. The oldest rejected messages are removed once
+   * the store exceeds the maxDeadLetterSize property.
+   *
+   * @param aMessages
+   *   Messages the server rejected
+   *
+   * @return <code>true</code> if all messages were moved; messages that
+   * could not be stored stay in aMessages.
+   */
+  private boolean addDeadLetters(IQUMessageQueue aMessages) {
+    if (DEBUG) {
+      this.addLog("[Network] server rejected: " + aMessages.toJSONString());
+    }
+    IQUMessageJournal deadLetters = this.m_deadLetters;
+    int count = aMessages.moveTo(deadLetters);
+    deadLetters.limitSize(this.getMaxDeadLetterSize());
+    synchronized (this.m_propertySemaphore) {
+      this.m_deadLetterCount += count;
+    }
+    if (DEBUG) {
+      this.addLog("[Queue] moved " + count + " message(s) to the dead-letter store");
+    }
+    return aMessages.isEmpty();
+  }
+
+  /**
+   * Updates the serverAvailable property and the retry scheduler with the
+   * result of a request. Cancelled requests do not change either.
+   *
+   * @param aResult
+   *   One of the IQUNetwork.RESULT_ constants
+   */
+  private void recordResult(int aResult) {
+    switch (aResult) {
+      case IQUNetwork.RESULT_OK:
+        this.m_retryScheduler.recordSuccess();
+        this.setServerAvailable(true);
+        break;
+      case IQUNetwork.RESULT_CANCELLED:
+        break;
+      default:
+        if (DEBUG) {
+          this.addLog("[Network] server is not available");
+        }
+        this.m_retryScheduler.recordFailure(aResult, System.currentTimeMillis(),
+          this.getCheckServerInterval(), this.getMaxRetryInterval());
+        this.setServerAvailable(false);
+        break;
+    }
+  }
+
+  /**
+   * Returns the executor used to send batches at the same time, creates it
+   * when needed. This method is only called from the update thread.
+   *
+   * @return executor instance
+   */
+  private ExecutorService getSendExecutor() {
+    if (this.m_sendExecutor == null) {
+      // the update thread sends the first batch, so at most
+      // MAX_IN_FLIGHT_BATCHES - 1 threads are needed; idle threads stop
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        MAX_IN_FLIGHT_BATCHES - 1, MAX_IN_FLIGHT_BATCHES - 1,
+        SEND_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>()
+      );
+      executor.allowCoreThreadTimeOut(true);
+      this.m_sendExecutor = executor;
+    }
+    return this.m_sendExecutor;
   }
 
   /**
-   * Adds a message to the pending message list. The method is thread safe
-   * blocking any access to the pending message queue while it's busy adding
-   * the message.
+   * Adds a message to the pending message list. The method is thread safe;
+   * the message is added to the inbox without locking. Only when a limit of
+   * the pending messages is reached the method locks the pending message
+   * queue to remove messages.
    *
    * @param aMessage
    *   Message to add.
@@ -1758,9 +3570,51 @@ public class IQUSDK {
   private void addMessage(IQUMessage aMessage) {
     // only add if IQU SDK has been initialized.
     if (this.getInitialized()) {
-      synchronized (this.m_pendingMessagesSemaphore) {
-        this.m_pendingMessages.add(aMessage);
+      // store message in ring file (if used and there is room)
+      String type = aMessage.getEventType();
+      IQUMessageRing ring = this.m_ring;
+      if ((ring != null) && ring.offer(aMessage)) {
+        aMessage.destroy();
+        this.scheduleSend(type, ring.getCount(), 0);
+        return;
+      }
+      int maxCount = this.getMaxPendingMessages();
+      long maxSize = this.getMaxPendingSize();
+      IQUOverflowPolicy policy = this.getOverflowPolicy();
+      IQUMessageInbox inbox = this.m_inbox;
+      IQUMessageQueue pendingMessages = this.m_pendingMessages;
+      if ((inbox == null) || (pendingMessages == null)) {
+        // terminated while adding the message
+        aMessage.destroy();
+        return;
+      }
+      // refuse the new message right away instead of searching for it
+      if (
+        (policy == IQUOverflowPolicy.REJECT_NEW) &&
+        (
+          (inbox.getCount() + pendingMessages.getCount() >= maxCount) ||
+          (inbox.getSize() + pendingMessages.getSize() + aMessage.getSize() >
+            maxSize)
+        )
+        ) {
+        aMessage.destroy();
+        this.addEvictedMessages(1);
+        return;
+      }
+      int count = inbox.offer(aMessage) + pendingMessages.getCount();
+      long size = inbox.getSize() + pendingMessages.getSize();
+      if ((count > maxCount) || (size > maxSize)) {
+        // apply the overflow policy to all messages
+        synchronized (this.m_pendingMessagesSemaphore) {
+          this.drainInbox();
+          this.addEvictedMessages(
+            pendingMessages.evict(maxCount, maxSize, policy)
+          );
+          count = pendingMessages.getCount();
+          size = pendingMessages.getSize();
+        }
       }
+      this.scheduleSend(type, count, size);
     }
     else {
       // message was not added, destroy the instance
@@ -1779,11 +3633,8 @@ public class IQUSDK {
    *   Event to create message for.
    */
   private void addEvent(JSONObject anEvent) {
-    IQUMessage message;
-    synchronized (this.m_idsSemaphore) {
-      message = new IQUMessage(this.m_ids, anEvent);
-    }
-    this.addMessage(message);
+    // the message shares the current ids snapshot
+    this.addMessage(new IQUMessage(this.m_ids, anEvent));
   }
 
   /**
@@ -1801,8 +3652,12 @@ public class IQUSDK {
     boolean result;
     // prevent other threads from accessing pending messages
     synchronized (this.m_pendingMessagesSemaphore) {
+      this.drainInbox();
       result = this.m_pendingMessages.hasEventType(aType);
     }
+    if (!result && (this.m_ring != null)) {
+      result = this.m_ring.hasEventType(aType);
+    }
     return result;
   }
 
@@ -1816,16 +3671,89 @@ public class IQUSDK {
    * @return JSONObject instance containing event
    */
   private JSONObject createEvent(String anEventType) {
+    return this.createEvent(anEventType, System.currentTimeMillis());
+  }
+
+  /**
+   * Creates an event with a certain type and a timestamp for a certain date
+   * and time.
+   *
+   * @param anEventType
+   *   Type to use
+   * @param aTime
+   *   Time of the event in milliseconds since 1-1-1970
+   *
+   * @return JSONObject instance containing event
+   */
+  private JSONObject createEvent(String anEventType, long aTime) {
     JSONObject result = new JSONObject();
     try {
       result.put("type", anEventType);
-      result.put("timestamp", this.m_dateFormat.format(new Date()));
+      result.put("timestamp", this.m_dateFormat.format(aTime));
     }
     catch (Exception ignored) {
     }
     return result;
   }
 
+  /**
+   * Claims a slot for a tracked event. If all slots are in use, because the
+   * update thread is behind, a new slot outside the ring is returned; see
+   * {@link #publishEvent(IQUEventSlot)}.
+   *
+   * @param anEventType
+   *   Type of the event
+   *
+   * @return slot to fill and pass to {@link #publishEvent(IQUEventSlot)} or
+   * null if the SDK has not been initialized.
+   */
+  private IQUEventSlot claimEvent(String anEventType) {
+    IQUEventRing events = this.m_events;
+    if ((events == null) || !this.getInitialized()) {
+      return null;
+    }
+    IQUEventSlot slot = events.claim();
+    if (slot == null) {
+      slot = new IQUEventSlot();
+    }
+    slot.begin(anEventType, System.currentTimeMillis(), this.m_ids);
+    return slot;
+  }
+
+  /**
+   * Publishes a slot filled by the caller and schedules the sending of the
+   * event. A slot outside the ring is converted to a message on the calling
+   * thread and added like any other message, so the overflowPolicy property
+   * is applied to it.
+   *
+   * @param aSlot
+   *   Slot returned by {@link #claimEvent(String)}
+   */
+  private void publishEvent(IQUEventSlot aSlot) {
+    if (!aSlot.isClaimed()) {
+      IQUMessage message = this.createEventMessage(aSlot);
+      if (message != null) {
+        this.addMessage(message);
+      }
+      return;
+    }
+    // terminate() can clear the fields while the caller fills the slot
+    IQUEventRing events = this.m_events;
+    IQUMessageInbox inbox = this.m_inbox;
+    IQUMessageQueue pendingMessages = this.m_pendingMessages;
+    if ((events == null) || (inbox == null) || (pendingMessages == null)) {
+      return;
+    }
+    // get the type before publishing, the slot can be reused after it
+    String type = aSlot.getType();
+    events.publish(aSlot);
+    this.scheduleSend(
+      type,
+      events.getCount() + inbox.getCount() + pendingMessages.getCount(),
+      inbox.getSize() + pendingMessages.getSize()
+    );
+  }
+
   //
   // PRIVATE TRACKING METHODS
   //
@@ -1839,16 +3767,14 @@ public class IQUSDK {
    */
   private void trackHeartbeat(IQUMessageQueue aMessages) {
     long currentTime = System.currentTimeMillis();
-    if (currentTime > this.m_heartbeatTime + HEARTBEAT_INTERVAL) {
+    if (currentTime >= this.m_heartbeatTime + HEARTBEAT_INTERVAL) {
       JSONObject event = this.createEvent(EVENT_HEARTBEAT);
       try {
         event.put("is_payable", this.m_payable);
       }
       catch (Exception ignored) {
       }
-      synchronized (this.m_idsSemaphore) {
-        aMessages.add(new IQUMessage(this.m_ids, event));
-      }
+      aMessages.add(new IQUMessage(this.m_ids, event));
       this.m_heartbeatTime = currentTime;
     }
   }
@@ -1910,6 +3836,17 @@ public class IQUSDK {
   // PRIVATE SUPPORT METHODS
   //
 
+  /**
+   * Logs that maxInFlightBatches has no effect because preserveUserOrder is
+   * turned on (all messages of a device share one SDK id).
+   */
+  private void logOrderWarning() {
+    this.addLog(
+      "[Network] WARNING: preserveUserOrder is on, so maxInFlightBatches "
+        + "has no effect and one request is sent at a time"
+    );
+  }
+
   /**
    * Puts a field and value into a JSONObject if the value is not null and not
    * an empty string.
@@ -1937,41 +3874,34 @@ public class IQUSDK {
   }
 
   /**
-   * Checks if the server is available. If the server was not available the
-   * code will only check if enough time has passed since the last check.
+   * Adds a field and value to an event slot if the value is not null and not
+   * an empty string.
    *
-   * @return <code>true</code> if the server is available, <code>false</code>
-   * if not.
+   * @param aSlot
+   *   Slot to add the value to
+   * @param aName
+   *   Name of value
+   * @param aValue
+   *   Value to add
    */
-  @SuppressWarnings("ConstantConditions")
-  private boolean checkServer() {
-    // server is not available since last check action?
-    if (!this.getServerAvailable()) {
-      // get current time
-      long currentTime = System.currentTimeMillis();
-      // not enough time has passed since last check?
-      if (currentTime < this.m_checkServerTime) {
-        // not enough time has passed, don't check, just assume server
-        // is
-        // still not available
-        return false;
-      }
-      // store new time
-      this.m_checkServerTime = currentTime + this.getCheckServerInterval();
-      // check if the server is reachable and return result
-      boolean result = this.m_network.checkServer();
-      // debug
-      if (DEBUG && result) {
-        this.addLog("[Network] server is available");
-      }
-      // return check server result
-      return result;
-
-    }
-    else {
-      // don't perform any checks, if server became unavailable this will
-      // be detected when sending the current pending messages.
-      return true;
+  private void putField(IQUEventSlot aSlot, String aName, String aValue) {
+    if ((aValue != null) && (aValue.length() > 0)) {
+      aSlot.addText(aName, aValue);
     }
   }
+
+  /**
+   * Checks if messages may be sent to the server. If the server was not
+   * available, messages are only sent again once the retry scheduler allows
+   * it; the first batch sent then checks if the server is available again.
+   *
+   * @return <code>true</code> if messages may be sent, <code>false</code> if
+   * not.
+   */
+  private boolean checkServer() {
+    // if server became unavailable this will be detected when sending the
+    // current pending messages.
+    return this.getServerAvailable()
+      || this.m_retryScheduler.isAttemptAllowed(System.currentTimeMillis());
+  }
 }
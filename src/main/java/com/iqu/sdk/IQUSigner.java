@@ -0,0 +1,183 @@
+package com.iqu.sdk;
+
+import java.io.OutputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * IQUSigner generates the HMAC-SHA512 signature of the POST content.
+ * <p>
+ * The key is initialized once. Every thread uses its own copy of the
+ * initialized Mac, which is updated with the message fragments as they are
+ * written; the content is never copied into a single buffer.
+ * </p>
+ */
+class IQUSigner {
+    //
+    // PRIVATE CONST
+    //
+
+    /**
+     * HMAC algorithm
+     */
+    private static final String ALGORITHM = "HmacSHA512";
+
+    /**
+     * Used to convert data to hexadecimal format
+     */
+    private static final char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
+
+    //
+    // PRIVATE TYPES
+    //
+
+    /**
+     * Output stream that adds the written data to the Mac.
+     */
+    private static class MacOutputStream extends OutputStream {
+        /**
+         * Mac to update
+         */
+        private final Mac m_mac;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param aMac
+         *            Initialized Mac to update.
+         */
+        public MacOutputStream(Mac aMac) {
+            this.m_mac = aMac;
+        }
+
+        @Override
+        public void write(int aByte) {
+            this.m_mac.update((byte) aByte);
+        }
+
+        @Override
+        public void write(byte[] aData, int anOffset, int aLength) {
+            this.m_mac.update(aData, anOffset, aLength);
+        }
+    }
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * The initialized key
+     */
+    private final SecretKeySpec m_key;
+
+    /**
+     * Initialized Mac that is cloned for every thread.
+     */
+    private final Mac m_prototype;
+
+    /**
+     * Stream and Mac of the current thread.
+     */
+    private final ThreadLocal<MacOutputStream> m_stream;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Initializes the key.
+     *
+     * @param aSecret
+     *            API secret (ASCII)
+     *
+     * @throws Exception
+     *             (if the key could not be initialized)
+     */
+    protected IQUSigner(String aSecret) throws Exception {
+        this.m_key = new SecretKeySpec(aSecret.getBytes("US-ASCII"), ALGORITHM);
+        this.m_prototype = Mac.getInstance(ALGORITHM);
+        this.m_prototype.init(this.m_key);
+        this.m_stream = new ThreadLocal<MacOutputStream>() {
+            @Override
+            protected MacOutputStream initialValue() {
+                return new MacOutputStream(IQUSigner.this.createMac());
+            }
+        };
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Generates the signature of the messages as they are written by
+     * {@link IQUMessageQueue#writeJSON(OutputStream)}.
+     *
+     * @param aMessages
+     *            Messages to sign
+     *
+     * @return The HMAC512 hash as hexadecimal String.
+     *
+     * @throws Exception
+     *             (if the signature could not be generated)
+     */
+    protected String sign(IQUMessageQueue aMessages) throws Exception {
+        MacOutputStream stream = this.m_stream.get();
+        if (stream.m_mac == null) {
+            throw new Exception("HMAC not available");
+        }
+        stream.m_mac.reset();
+        aMessages.writeJSON(stream);
+        return bytesToHex(stream.m_mac.doFinal());
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Creates a Mac for the current thread by cloning the prototype. If the
+     * provider does not support cloning, a new Mac is initialized.
+     *
+     * @return initialized Mac or null if none could be created
+     */
+    private Mac createMac() {
+        try {
+            synchronized (this.m_prototype) {
+                return (Mac) this.m_prototype.clone();
+            }
+        } catch (CloneNotSupportedException ignore) {
+        }
+        try {
+            Mac result = Mac.getInstance(ALGORITHM);
+            result.init(this.m_key);
+            return result;
+        } catch (Exception error) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert byte array to hex string.
+     * <p>
+     * Source:
+     * http://stackoverflow.com/questions/9655181/convert-from-byte-array
+     * -to-hex-string-in-java
+     * </p>
+     *
+     * @param aBytes
+     *            Byte array to convert
+     *
+     * @return Hexadecimal representation of data
+     */
+    private static String bytesToHex(byte[] aBytes) {
+        char[] hexChars = new char[aBytes.length * 2];
+        for (int j = 0; j < aBytes.length; j++) {
+            int v = aBytes[j] & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+}
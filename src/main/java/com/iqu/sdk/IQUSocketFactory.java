@@ -0,0 +1,121 @@
+package com.iqu.sdk;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * IQUSocketFactory wraps a SSL socket factory and counts the number of
+ * sockets it creates. The same instance is used for every request, so the
+ * connection can keep alive connections; comparing the number of created
+ * sockets with the number of requests gives the connection reuse rate.
+ */
+class IQUSocketFactory extends SSLSocketFactory {
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Factory that creates the sockets.
+     */
+    private final SSLSocketFactory m_factory;
+
+    /**
+     * See property definition.
+     */
+    private volatile long m_socketCount;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new instance.
+     *
+     * @param aFactory
+     *            Factory to create the sockets with.
+     */
+    protected IQUSocketFactory(SSLSocketFactory aFactory) {
+        this.m_factory = aFactory;
+        this.m_socketCount = 0;
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return this.m_factory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return this.m_factory.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        this.addSocket();
+        return this.m_factory.createSocket();
+    }
+
+    @Override
+    public Socket createSocket(Socket aSocket, String aHost, int aPort, boolean anAutoClose)
+            throws IOException {
+        this.addSocket();
+        return this.m_factory.createSocket(aSocket, aHost, aPort, anAutoClose);
+    }
+
+    @Override
+    public Socket createSocket(String aHost, int aPort) throws IOException {
+        this.addSocket();
+        return this.m_factory.createSocket(aHost, aPort);
+    }
+
+    @Override
+    public Socket createSocket(String aHost, int aPort, InetAddress aLocalHost, int aLocalPort)
+            throws IOException {
+        this.addSocket();
+        return this.m_factory.createSocket(aHost, aPort, aLocalHost, aLocalPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress aHost, int aPort) throws IOException {
+        this.addSocket();
+        return this.m_factory.createSocket(aHost, aPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress anAddress, int aPort, InetAddress aLocalAddress,
+            int aLocalPort) throws IOException {
+        this.addSocket();
+        return this.m_factory.createSocket(anAddress, aPort, aLocalAddress, aLocalPort);
+    }
+
+    //
+    // PROTECTED PROPERTIES
+    //
+
+    /**
+     * Returns the number of sockets created by this factory.
+     *
+     * @return number of sockets
+     */
+    protected synchronized long getSocketCount() {
+        return this.m_socketCount;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Increases the socket count.
+     */
+    private synchronized void addSocket() {
+        this.m_socketCount++;
+    }
+}
@@ -0,0 +1,78 @@
+package com.iqu.sdk;
+
+/**
+ * Possible ways the SDK can store messages that are waiting to be sent.
+ */
+public enum IQUStorageMode {
+    /**
+     * Keep pending messages in memory and append them to a journal file when
+     * they could not be sent.
+     */
+    JOURNAL(0),
+
+    /**
+     * Store pending messages in a memory mapped ring file. Only the messages
+     * being sent are kept in memory, so memory usage does not grow with the
+     * number of pending messages. Use this mode for implementations that can
+     * build up very large backlogs (for example S2S implementations).
+     */
+    MAPPED_RING(1);
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Store value
+     */
+    private final int m_value;
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param aValue
+     *            integer storage mode value
+     */
+    IQUStorageMode(int aValue) {
+        this.m_value = aValue;
+    }
+
+    //
+    // PUBLIC PROPERTIES
+    //
+
+    /**
+     * Returns the storage mode as integer.
+     * 
+     * @return storage mode as integer
+     */
+    public int getValue() {
+        return this.m_value;
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    /**
+     * Find a specific storage mode for an integer value.
+     * 
+     * @param aStorageMode
+     *            integer value to find storage mode for
+     * 
+     * @return the found storage mode or null if none could be found for
+     *         aStorageMode
+     */
+    public static IQUStorageMode find(int aStorageMode) {
+        for (IQUStorageMode storageMode : IQUStorageMode.values()) {
+            if (storageMode.getValue() == aStorageMode) {
+                return storageMode;
+            }
+        }
+        return null;
+    }
+}
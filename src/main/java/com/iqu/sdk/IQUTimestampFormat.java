@@ -0,0 +1,187 @@
+package com.iqu.sdk;
+
+/**
+ * IQUTimestampFormat formats times in the format used by the server:
+ * "yyyy-MM-dd HH:mm:ss" in GMT. The class can be used from multiple threads.
+ * <p>
+ * The last formatted second is cached, so events tracked in the same second
+ * share the same string. Otherwise the digits are written into a reusable
+ * char buffer; no calendar or date objects are used.
+ * </p>
+ */
+class IQUTimestampFormat {
+    //
+    // PRIVATE CONSTS
+    //
+
+    /**
+     * Milliseconds in a second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /**
+     * Seconds in a day.
+     */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Number of characters in a formatted timestamp.
+     */
+    private static final int LENGTH = 19;
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Last formatted second (replaced as a whole, so no lock is needed to
+     * read it).
+     */
+    private volatile CachedSecond m_cached;
+
+    /**
+     * Buffer the digits are written to; threads lock it while writing.
+     */
+    private final char[] m_buffer;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new formatter.
+     */
+    protected IQUTimestampFormat() {
+        this.m_cached = new CachedSecond(Long.MIN_VALUE, "");
+        this.m_buffer = new char[LENGTH];
+        this.m_buffer[4] = '-';
+        this.m_buffer[7] = '-';
+        this.m_buffer[10] = ' ';
+        this.m_buffer[13] = ':';
+        this.m_buffer[16] = ':';
+    }
+
+    //
+    // PROTECTED METHODS
+    //
+
+    /**
+     * Formats a time.
+     *
+     * @param aTime
+     *            Time in milliseconds since 1-1-1970 (GMT)
+     *
+     * @return formatted timestamp
+     */
+    protected String format(long aTime) {
+        long second = floorDiv(aTime, MILLIS_PER_SECOND);
+        CachedSecond cached = this.m_cached;
+        if (cached.m_second == second) {
+            return cached.m_text;
+        }
+        String result;
+        synchronized (this.m_buffer) {
+            this.write(second);
+            result = new String(this.m_buffer);
+        }
+        this.m_cached = new CachedSecond(second, result);
+        return result;
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Writes the date and time of a second to the buffer. The caller must
+     * lock m_buffer.
+     *
+     * @param aSecond
+     *            Seconds since 1-1-1970 (GMT)
+     */
+    private void write(long aSecond) {
+        long days = floorDiv(aSecond, SECONDS_PER_DAY);
+        int secondOfDay = (int) (aSecond - days * SECONDS_PER_DAY);
+        // convert days to a civil date (proleptic Gregorian calendar), using
+        // eras of 400 years starting at 1 March
+        days += 719468;
+        long era = floorDiv(days, 146097);
+        int dayOfEra = (int) (days - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        this.writeDigits(0, 4, (int) year);
+        this.writeDigits(5, 2, month);
+        this.writeDigits(8, 2, day);
+        this.writeDigits(11, 2, secondOfDay / 3600);
+        this.writeDigits(14, 2, secondOfDay / 60 % 60);
+        this.writeDigits(17, 2, secondOfDay % 60);
+    }
+
+    /**
+     * Writes a number with leading zeros to the buffer.
+     *
+     * @param anOffset
+     *            Position of the first digit
+     * @param aCount
+     *            Number of digits
+     * @param aValue
+     *            Value to write
+     */
+    private void writeDigits(int anOffset, int aCount, int aValue) {
+        for (int index = anOffset + aCount - 1; index >= anOffset; index--) {
+            this.m_buffer[index] = (char) ('0' + aValue % 10);
+            aValue /= 10;
+        }
+    }
+
+    /**
+     * Divides and rounds towards negative infinity.
+     *
+     * @param aValue
+     *            Value to divide
+     * @param aDivisor
+     *            Positive divisor
+     *
+     * @return quotient
+     */
+    private static long floorDiv(long aValue, long aDivisor) {
+        long result = aValue / aDivisor;
+        return (aValue % aDivisor < 0) ? result - 1 : result;
+    }
+
+    //
+    // PRIVATE TYPES
+    //
+
+    /**
+     * A formatted second.
+     */
+    private static final class CachedSecond {
+        /**
+         * Seconds since 1-1-1970.
+         */
+        private final long m_second;
+
+        /**
+         * Formatted timestamp.
+         */
+        private final String m_text;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param aSecond
+         *            Seconds since 1-1-1970
+         * @param aText
+         *            Formatted timestamp
+         */
+        private CachedSecond(long aSecond, String aText) {
+            this.m_second = aSecond;
+            this.m_text = aText;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.iqu.sdk;
+
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+
+/**
+ * IQUTransport sends a signed request to the server. IQUNetwork builds the
+ * signed URL and uses a transport to perform the actual IO.
+ */
+interface IQUTransport {
+    /**
+     * Sends a request and waits for the response.
+     * 
+     * @param anUrl
+     *            URL to send request to (including the signature)
+     * @param aPostContent
+     *            Messages to POST or null if there is no POST content.
+     * @param aTimeout
+     *            Maximum time in milliseconds
+     * 
+     * @return JSONObject instance with result returned from server, see
+     *         {@link IQUNetwork#createResult(int, String, java.util.Map)}
+     * 
+     * @throws Exception
+     *             (if sending failed, timed out or was cancelled)
+     */
+    JSONObject send(String anUrl, IQUMessageQueue aPostContent, long aTimeout) throws Exception;
+
+    /**
+     * Starts sending a request without waiting for the response. Only
+     * transports that do not need a thread per request support this.
+     * 
+     * @param anUrl
+     *            URL to send request to (including the signature)
+     * @param aPostContent
+     *            Messages to POST or null if there is no POST content.
+     * @param aTimeout
+     *            Maximum time in milliseconds
+     * 
+     * @return future for the result (see {@link #send}) or null if the
+     *         transport can not send asynchronously
+     * 
+     * @throws Exception
+     *             (if the request could not be started)
+     */
+    Future<JSONObject> sendAsync(String anUrl, IQUMessageQueue aPostContent, long aTimeout)
+            throws Exception;
+
+    /**
+     * Cancels the request currently being sent (if any).
+     */
+    void cancel();
+
+    /**
+     * Cleans up references and resources.
+     */
+    void destroy();
+
+    /**
+     * Returns the part of the requests that used an existing connection.
+     * 
+     * @return value between 0.0 and 1.0 or -1.0 if the transport can not
+     *         determine it
+     */
+    double getConnectionReuseRate();
+}
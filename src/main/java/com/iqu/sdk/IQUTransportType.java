@@ -0,0 +1,87 @@
+package com.iqu.sdk;
+
+/**
+ * Possible ways the SDK sends requests to the server.
+ */
+public enum IQUTransportType {
+    /**
+     * Use {@link #HTTP_CLIENT} when it is available, else use
+     * {@link #URL_CONNECTION}.
+     */
+    AUTOMATIC(0),
+
+    /**
+     * Use HttpURLConnection.
+     */
+    URL_CONNECTION(1),
+
+    /**
+     * Use java.net.http.HttpClient (not available on Android). When the
+     * client is not available, {@link #URL_CONNECTION} is used.
+     */
+    HTTP_CLIENT(2),
+
+    /**
+     * Do not perform any IO; requests are accepted and kept in memory. Use
+     * this type to measure the SDK without network influence.
+     */
+    LOOPBACK(3);
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Store value
+     */
+    private final int m_value;
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param aValue
+     *            integer transport type value
+     */
+    IQUTransportType(int aValue) {
+        this.m_value = aValue;
+    }
+
+    //
+    // PUBLIC PROPERTIES
+    //
+
+    /**
+     * Returns the transport type as integer.
+     * 
+     * @return transport type as integer
+     */
+    public int getValue() {
+        return this.m_value;
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    /**
+     * Find a specific transport type for an integer value.
+     * 
+     * @param aTransportType
+     *            integer value to find transport type for
+     * 
+     * @return the found transport type or null if none could be found for
+     *         aTransportType
+     */
+    public static IQUTransportType find(int aTransportType) {
+        for (IQUTransportType transportType : IQUTransportType.values()) {
+            if (transportType.getValue() == aTransportType) {
+                return transportType;
+            }
+        }
+        return null;
+    }
+}
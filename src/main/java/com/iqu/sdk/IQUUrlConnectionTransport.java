@@ -0,0 +1,320 @@
+package com.iqu.sdk;
+
+import android.annotation.SuppressLint;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import org.json.JSONObject;
+
+/**
+ * IQUUrlConnectionTransport sends requests using HttpURLConnection. All
+ * connections share the same SSL socket factory, so keep alive connections
+ * are reused.
+ * <p>
+ * The request is performed on the calling thread; several threads can send
+ * at the same time. The timeout is applied to connecting and to every read;
+ * cancelling closes the connections, which aborts any blocking IO right away.
+ * </p>
+ */
+class IQUUrlConnectionTransport implements IQUTransport {
+    //
+    // PRIVATE CONSTS
+    //
+
+    /**
+     * Size of the buffer used to write POST content to the connection.
+     */
+    private static final int POST_BUFFER_SIZE = 8192;
+
+    //
+    // PRIVATE VARS
+    //
+
+    /**
+     * Network that creates the results.
+     */
+    private final IQUNetwork m_network;
+
+    /**
+     * Socket factory shared by all connections, created when needed.
+     */
+    private volatile IQUSocketFactory m_socketFactory;
+
+    /**
+     * Number of requests sent to the server.
+     */
+    private volatile long m_requestCount;
+
+    /**
+     * Connections currently being used.
+     */
+    private final Set<HttpURLConnection> m_connections;
+
+    //
+    // CONSTRUCTOR
+    //
+
+    /**
+     * Creates a new instance.
+     *
+     * @param aNetwork
+     *            Network that uses the transport.
+     */
+    protected IQUUrlConnectionTransport(IQUNetwork aNetwork) {
+        this.m_network = aNetwork;
+        this.m_socketFactory = null;
+        this.m_requestCount = 0;
+        this.m_connections = Collections.newSetFromMap(
+                new ConcurrentHashMap<HttpURLConnection, Boolean>());
+    }
+
+    //
+    // PUBLIC METHODS
+    //
+
+    @Override
+    public JSONObject send(String anUrl, IQUMessageQueue aPostContent, long aTimeout)
+            throws Exception {
+        // create connection
+        HttpURLConnection connection = this.createConnection(anUrl);
+        this.addRequest();
+        JSONObject result;
+        this.m_connections.add(connection);
+        try {
+            // cancelled before the connection was stored?
+            this.checkCancelled();
+            // initialize connection and send data
+            this.initConnection(connection, aPostContent, aTimeout);
+            // get result; the response is read completely so the
+            // connection can be reused
+            result = this.processResponse(connection);
+        } catch (SocketTimeoutException error) {
+            connection.disconnect();
+            throw new Exception("Time out sending (max time allowed = "
+                    + String.valueOf(aTimeout) + "ms");
+        } catch (Exception error) {
+            // don't reuse the connection after an error
+            connection.disconnect();
+            this.checkCancelled();
+            throw error;
+        } finally {
+            this.m_connections.remove(connection);
+        }
+        if (IQUSDK.DEBUG) {
+            IQUSDK.instance().addLog("[Network] [Connection reuse rate] "
+                    + String.valueOf(this.getConnectionReuseRate()));
+        }
+        return result;
+    }
+
+    @Override
+    public Future<JSONObject> sendAsync(String anUrl, IQUMessageQueue aPostContent,
+            long aTimeout) {
+        // every connection blocks a thread
+        return null;
+    }
+
+    @Override
+    public void cancel() {
+        // closing the connections aborts any blocking IO
+        for (HttpURLConnection connection : this.m_connections) {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        this.cancel();
+    }
+
+    @Override
+    public synchronized double getConnectionReuseRate() {
+        if ((this.m_requestCount == 0) || (this.m_socketFactory == null)) {
+            return 0.0;
+        }
+        return Math.max(0.0,
+                1.0 - (double) this.m_socketFactory.getSocketCount() / this.m_requestCount);
+    }
+
+    //
+    // PRIVATE METHODS
+    //
+
+    /**
+     * Convert the contents of an input stream to a string, the method will also
+     * close the input stream once all data is obtained.
+     *
+     * @param anInputStream
+     *            Input stream to get data from
+     *
+     * @return input stream as text or null if an IOException occurred.
+     */
+    @SuppressWarnings("ReturnInsideFinallyBlock")
+    private String streamToString(InputStream anInputStream) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(anInputStream));
+        StringBuilder builder = new StringBuilder();
+        String line;
+        try {
+            while ((line = reader.readLine()) != null) {
+                builder.append(line).append("\n");
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                anInputStream.close();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Creates a HttpURLConnection instance from url.
+     *
+     * @param anUrl
+     *            URL to use
+     *
+     * @return HttpURLConnection instance
+     */
+    private HttpURLConnection createConnection(String anUrl) throws Exception {
+        // get URL and connection
+        URL url = new URL(anUrl);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        // use the same socket factory, so keep alive connections are reused
+        if (conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(this.getSocketFactory());
+        }
+        return conn;
+    }
+
+    /**
+     * Returns the socket factory shared by all connections. The factory is
+     * created the first time this method is called.
+     *
+     * @return socket factory
+     *
+     * @throws Exception
+     *             (if the SSL context could not be initialized)
+     */
+    @SuppressLint("TrulyRandom")
+    private synchronized IQUSocketFactory getSocketFactory() throws Exception {
+        if (this.m_socketFactory == null) {
+            SSLContext sc = SSLContext.getInstance("TLS");
+            sc.init(null, null, new java.security.SecureRandom());
+            this.m_socketFactory = new IQUSocketFactory(sc.getSocketFactory());
+        }
+        return this.m_socketFactory;
+    }
+
+    /**
+     * Increases the request count.
+     */
+    private synchronized void addRequest() {
+        this.m_requestCount++;
+    }
+
+    /**
+     * Throws an exception if the network was ordered to cancel any IO.
+     *
+     * @throws Exception
+     *             (if sending was cancelled)
+     */
+    private void checkCancelled() throws Exception {
+        if (this.m_network.isCancelled()) {
+            throw new Exception("Sending was cancelled from other thread.");
+        }
+    }
+
+    /**
+     * Initializes a connection and sends the data to the server.
+     *
+     * @param aConnection
+     *            Connection to initialize.
+     * @param aPostContent
+     *            Messages to post or null if there is no post content. The
+     *            messages are written directly to the connection.
+     * @param aTimeout
+     *            Maximum time in milliseconds for connecting and for every
+     *            read
+     *
+     * @throws Exception
+     *             An exception is thrown if an error occurred while
+     *             initializing the instance or sending the data.
+     */
+    private void initConnection(HttpURLConnection aConnection, IQUMessageQueue aPostContent,
+            long aTimeout) throws Exception {
+        // initialize connection
+        int timeout = (int) Math.min(aTimeout, Integer.MAX_VALUE);
+        aConnection.setConnectTimeout(timeout);
+        aConnection.setReadTimeout(timeout);
+        aConnection.setDoInput(true);
+        aConnection.setRequestProperty("Content-Type", "application/json");
+        aConnection.setRequestProperty("SdkVersion", IQUSDK.SDK_VERSION);
+        aConnection.setRequestProperty("SdkType", "Android");
+        if (aPostContent == null) {
+            aConnection.setDoOutput(false);
+            aConnection.setRequestMethod("GET");
+        } else if (this.m_network.isCompressed(aPostContent)) {
+            aConnection.setDoOutput(true);
+            aConnection.setRequestMethod("POST");
+            aConnection.setRequestProperty("Content-Encoding", "gzip");
+            // the compressed length is not known in advance
+            aConnection.setChunkedStreamingMode(0);
+            this.m_network.writeCompressed(aPostContent, new BufferedOutputStream(
+                    aConnection.getOutputStream(), POST_BUFFER_SIZE));
+        } else {
+            aConnection.setDoOutput(true);
+            aConnection.setRequestMethod("POST");
+            // stream the content instead of buffering it in the connection
+            long length = aPostContent.getJSONLength();
+            if (length <= Integer.MAX_VALUE) {
+                aConnection.setFixedLengthStreamingMode((int) length);
+            } else {
+                aConnection.setChunkedStreamingMode(0);
+            }
+            OutputStream stream = new BufferedOutputStream(aConnection.getOutputStream(),
+                    POST_BUFFER_SIZE);
+            aPostContent.writeJSON(stream);
+            stream.close();
+        }
+    }
+
+    /**
+     * Processes the response and tries to parse the response as JSON data. The
+     * response is read completely, so the connection can be reused.
+     *
+     * @param aConnection
+     *            Connection to process response off
+     *
+     * @return JSONObject instance, see
+     *         {@link IQUNetwork#createResult(int, String, java.util.Map)}
+     *
+     * @throws Exception
+     *             An exception can be thrown while obtaining response
+     *             information.
+     */
+    private JSONObject processResponse(HttpURLConnection aConnection) throws Exception {
+        // get response
+        int code = aConnection.getResponseCode();
+        // get stream (depending on response code)
+        InputStream stream = code >= 400 ? aConnection.getErrorStream() : aConnection
+                .getInputStream();
+        // get text
+        String resultContent = stream == null ? null : this.streamToString(stream);
+        return this.m_network.createResult(code, resultContent, aConnection.getHeaderFields());
+    }
+}